@@ -18,7 +18,9 @@ public interface AppSwitchConfiguration {
      * A hook to initialize the application that is being started. This method will be called from the interstitial
      * activity that handles application changes, and cannot invoke or display any UI.
      *
-     * This is a good opportunity to run an app-specific initialization logic that might be relevant.
+     * This is a good opportunity to run an app-specific initialization logic that might be relevant. Since this is
+     * called on the main thread, slower work should rather be provided as tasks by also implementing
+     * {@link AppWarmUpConfiguration}.
      */
     void startAppWarmUp();
 }
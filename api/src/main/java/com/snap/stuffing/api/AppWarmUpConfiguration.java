@@ -0,0 +1,36 @@
+package com.snap.stuffing.api;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Warm-up tasks for the application that is being started. An {@link AppSwitchConfiguration} can also implement this
+ * interface, in which case its tasks are run in the background by the interstitial activity while it waits for the app
+ * switch to complete.
+ *
+ * Unfinished tasks are cancelled as soon as the new application is launched.
+ */
+public interface AppWarmUpConfiguration {
+
+    /**
+     * Extra of the launch intent of the new application, listing the names of the warm-up tasks that completed.
+     */
+    String EXTRA_COMPLETED_WARM_UP_TASKS = "com.snap.stuffing.COMPLETED_WARM_UP_TASKS";
+
+    /**
+     * The warm-up tasks of the application that is being started.
+     */
+    @NonNull
+    List<AppWarmUpTask> getWarmUpTasks();
+
+    /**
+     * Invoked from the interstitial activity right before launching the new application, once the unfinished tasks were
+     * cancelled.
+     *
+     * @param completedTaskNames   the names of the tasks that ran to completion
+     * @param unfinishedTaskNames  the names of the tasks that failed, were cancelled, missed their deadline or were never
+     *                             started
+     */
+    void onWarmUpFinished(@NonNull List<String> completedTaskNames, @NonNull List<String> unfinishedTaskNames);
+}
@@ -0,0 +1,41 @@
+package com.snap.stuffing.api;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A unit of work run in the background while the interstitial activity waits for the app switch to complete, to make
+ * the cold start of the new application cheaper. For example, preloading classes, priming disk caches or opening
+ * databases.
+ *
+ * Tasks are run in order of decreasing {@link #getPriority()} on a small pool of background threads. A task that is
+ * still running when the new application is launched is interrupted, so long running tasks should check
+ * {@link Thread#isInterrupted()}.
+ */
+public interface AppWarmUpTask {
+
+    int PRIORITY_LOW = -100;
+    int PRIORITY_DEFAULT = 0;
+    int PRIORITY_HIGH = 100;
+
+    /**
+     * A name identifying this task, used when reporting which tasks completed.
+     */
+    @NonNull
+    String getName();
+
+    /**
+     * Tasks with a higher priority are started first.
+     */
+    int getPriority();
+
+    /**
+     * The time in milliseconds, relative to the start of the warm-up, after which this task is no longer worth starting.
+     * A value of 0 or less means no deadline.
+     */
+    long getDeadlineMillis();
+
+    /**
+     * Runs the task on a background thread.
+     */
+    void run() throws Exception;
+}
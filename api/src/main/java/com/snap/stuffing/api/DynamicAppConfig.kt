@@ -4,5 +4,19 @@ package com.snap.stuffing.api
  * Provides configuration for a [DynamicAppManager].
  *
  * [events] specifies string-mapped runnables what should be executed when those events are invoked om the [DynamicAppManager].
+ *
+ * [launcherAliasRouting] enables launcher activity-aliases tagged with a 'launcherForAppFamilies' meta-data attribute,
+ * such that the launcher opens the main activity of the active app family directly instead of going through the
+ * DynamicLaunchActivity.
+ *
+ * [appVersionCode] is the versionCode of the app, usually BuildConfig.VERSION_CODE. When provided, the [DynamicAppManager]
+ * doesn't need to query it from the PackageManager after app updates. 0 means unknown.
+ *
+ * [liveAppSwapper], if provided, completes switches in the same process when it supports the target app family, instead
+ * of restarting the process.
  */
-data class DynamicAppConfig(val events: Map<String, Runnable>)
\ No newline at end of file
+data class DynamicAppConfig @JvmOverloads constructor(
+        val events: Map<String, Runnable>,
+        val launcherAliasRouting: Boolean = false,
+        val appVersionCode: Int = 0,
+        val liveAppSwapper: LiveAppSwapper? = null)
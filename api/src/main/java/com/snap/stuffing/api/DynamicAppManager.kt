@@ -22,6 +22,12 @@ interface DynamicAppManager {
      */
     fun initialize()
 
+    /**
+     * Same as [initialize], but runs on a background thread owned by the [DynamicAppManager]. The returned
+     * [DynamicAppOperation] can be used to cancel the operation before it starts.
+     */
+    fun initializeAsync(listener: DynamicAppOperationListener?): DynamicAppOperation
+
     /**
      * Invoked when an event that might be of interest to the [DynamicAppManager] occurs.
      */
@@ -40,10 +46,25 @@ interface DynamicAppManager {
 
     /**
      * Switch to the app family specified in [appFamily]. Note that the process should eb restarted after
-     * calling this method.
+     * calling this method, unless the [DynamicAppConfig.liveAppSwapper] completes the switch in the same process.
+     *
+     * Switches run one at a time, and this runs the switch on the calling thread once the running one, if any,
+     * completes. A switch that didn't start yet is superseded by any later switch, in which case this returns without
+     * switching.
      */
     fun switchToAppFamily(appFamily: String, useSwitchActivity: Boolean, launchIntent: Intent?)
 
+    /**
+     * Same as [switchToAppFamily], but returns without waiting for the switch to run, reporting progress to the
+     * [listener]. The app is relaunched once the switch completes. If a later switch supersedes this one before it
+     * starts, the operation is cancelled and the [listener] receives a
+     * [java.util.concurrent.CancellationException].
+     */
+    fun switchToAppFamilyAsync(appFamily: String,
+                               useSwitchActivity: Boolean,
+                               launchIntent: Intent?,
+                               listener: DynamicAppOperationListener?): DynamicAppOperation
+
     /**
      * Indicates that the current application session is the first application session following an app family change.
      */
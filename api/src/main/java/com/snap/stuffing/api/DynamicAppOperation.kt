@@ -0,0 +1,43 @@
+package com.snap.stuffing.api
+
+/**
+ * A handle on an asynchronous [DynamicAppManager] operation, such as [DynamicAppManager.initializeAsync] or
+ * [DynamicAppManager.switchToAppFamilyAsync].
+ */
+interface DynamicAppOperation {
+
+    /**
+     * True once the operation completed, failed or was cancelled.
+     */
+    val isDone: Boolean
+
+    val isCancelled: Boolean
+
+    /**
+     * Cancels the operation if it didn't start yet. Once started, an operation always runs to completion, since stopping
+     * in the middle of toggling components would leave them inconsistent with the app family.
+     *
+     * @return True if the operation was cancelled, false if it already started or finished.
+     */
+    fun cancel(): Boolean
+}
+
+/**
+ * Receives the progress and outcome of a [DynamicAppOperation]. Callbacks are invoked on the [DynamicAppManager]'s
+ * background thread, so UI updates should be posted to the main thread.
+ */
+interface DynamicAppOperationListener {
+
+    /**
+     * Invoked as components are applied, with the number of components applied so far and the total number of components
+     * to apply.
+     */
+    fun onProgress(appliedComponentCount: Int, totalComponentCount: Int)
+
+    /**
+     * Invoked once the operation completed. For app family switches, this is invoked right before the app is relaunched.
+     */
+    fun onComplete()
+
+    fun onError(error: Throwable)
+}
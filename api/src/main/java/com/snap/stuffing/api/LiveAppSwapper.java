@@ -0,0 +1,29 @@
+package com.snap.stuffing.api;
+
+import android.content.Intent;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Swaps the running application to another app family in the same process, instead of restarting the process after a
+ * switch. Usually implemented by the {@code DelegatingApplicationLike}, and provided to the {@link DynamicAppManager}
+ * through the {@link DynamicAppConfig}.
+ */
+public interface LiveAppSwapper {
+
+    /**
+     * @return whether a switch from the running app family to {@code toAppFamily} can be completed in the same
+     *     process. Otherwise the process is restarted as usual.
+     */
+    boolean canSwapInProcess(@NonNull String toAppFamily);
+
+    /**
+     * Tears down the running application, then creates and launches the application of {@code toAppFamily}. Invoked on
+     * the main thread, once the components of {@code toAppFamily} were enabled and the package manager has broadcast
+     * the change. The swap may complete asynchronously, e.g. once the activities of the running application are
+     * destroyed.
+     *
+     * @param relaunchIntent the intent to launch the main activity of {@code toAppFamily} with, if any
+     */
+    void swapToAppFamily(@NonNull String toAppFamily, @Nullable Intent relaunchIntent);
+}
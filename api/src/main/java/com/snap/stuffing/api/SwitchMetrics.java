@@ -0,0 +1,150 @@
+package com.snap.stuffing.api;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * The timings and costs of a single app family switch, reported to a {@link SwitchMetricsListener} by the new process
+ * once the switch completed.
+ *
+ * Timestamps are {@link SystemClock#elapsedRealtime()} values, which are monotonic and shared by all processes, so
+ * phases recorded in the process that started the switch, in the interstitial activity's process and in the new process
+ * can be compared with each other. A phase that wasn't reached, e.g. because the interstitial activity wasn't used, has
+ * a timestamp of -1.
+ */
+public final class SwitchMetrics {
+
+    /** The switch was requested. */
+    public static final int PHASE_SWITCH_START = 0;
+    /** {@link AppSwitchHook#preAppFamilySwitch(String, String)} returned. */
+    public static final int PHASE_PRE_SWITCH_HOOK = 1;
+    /** The failed attempt counter was persisted, before toggling components. */
+    public static final int PHASE_PREFS_COMMIT = 2;
+    /** The manifest components were toggled. */
+    public static final int PHASE_COMPONENTS_TOGGLED = 3;
+    /** The new app family was persisted. */
+    public static final int PHASE_STATE_COMMIT = 4;
+    /** The process that started the switch is about to exit. */
+    public static final int PHASE_PROCESS_EXIT = 5;
+    /** The interstitial activity was created in its own process. */
+    public static final int PHASE_SWITCH_ACTIVITY_CREATED = 6;
+    /** The package manager reported all the changed components, or the interstitial activity timed out. */
+    public static final int PHASE_PACKAGE_CHANGED = 7;
+    /** The new application's launch intent was started. */
+    public static final int PHASE_RELAUNCH = 8;
+    /** The new process was started, only available on API 24+ and when the switch restarted the process. */
+    public static final int PHASE_NEW_PROCESS_START = 9;
+    /** The first activity of the new process was created. */
+    public static final int PHASE_FIRST_ACTIVITY_CREATED = 10;
+
+    public static final int PHASE_COUNT = 11;
+
+    @NonNull private final String fromAppFamily;
+    @NonNull private final String toAppFamily;
+    @NonNull private final long[] timestamps;
+    private final int componentsScanned;
+    private final int ipcCount;
+    private final int componentsChanged;
+    private final boolean timedOut;
+
+    public SwitchMetrics(@NonNull String fromAppFamily,
+                         @NonNull String toAppFamily,
+                         @NonNull long[] timestamps,
+                         int componentsScanned,
+                         int ipcCount,
+                         int componentsChanged,
+                         boolean timedOut) {
+        if (timestamps.length != PHASE_COUNT) {
+            throw new IllegalArgumentException("Expected " + PHASE_COUNT + " timestamps, got " + timestamps.length);
+        }
+        this.fromAppFamily = fromAppFamily;
+        this.toAppFamily = toAppFamily;
+        this.timestamps = timestamps.clone();
+        this.componentsScanned = componentsScanned;
+        this.ipcCount = ipcCount;
+        this.componentsChanged = componentsChanged;
+        this.timedOut = timedOut;
+    }
+
+    @NonNull
+    public String getFromAppFamily() {
+        return fromAppFamily;
+    }
+
+    @NonNull
+    public String getToAppFamily() {
+        return toAppFamily;
+    }
+
+    /**
+     * Returns the timestamp of one of the PHASE_* constants, or -1 if that phase wasn't reached.
+     */
+    public long getTimestamp(int phase) {
+        return timestamps[phase];
+    }
+
+    /**
+     * Returns the time elapsed between two phases, or -1 if either of them wasn't reached.
+     */
+    public long getDurationMillis(int fromPhase, int toPhase) {
+        if (timestamps[fromPhase] < 0 || timestamps[toPhase] < 0) {
+            return -1;
+        }
+        return timestamps[toPhase] - timestamps[fromPhase];
+    }
+
+    /**
+     * The time elapsed from the start of the switch to the last phase that was reached.
+     */
+    public long getTotalDurationMillis() {
+        for (int phase = PHASE_COUNT - 1; phase > PHASE_SWITCH_START; phase--) {
+            if (timestamps[phase] >= 0) {
+                return getDurationMillis(PHASE_SWITCH_START, phase);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The number of components whose enabled state was read from the package manager.
+     */
+    public int getComponentsScanned() {
+        return componentsScanned;
+    }
+
+    /**
+     * The number of package manager calls made to read and write component states.
+     */
+    public int getIpcCount() {
+        return ipcCount;
+    }
+
+    /**
+     * The number of components whose enabled state was changed before relaunching.
+     */
+    public int getComponentsChanged() {
+        return componentsChanged;
+    }
+
+    /**
+     * True if the interstitial activity timed out before the package manager reported all the changed components.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public String toString() {
+        return "SwitchMetrics{" +
+                "fromAppFamily='" + fromAppFamily + '\'' +
+                ", toAppFamily='" + toAppFamily + '\'' +
+                ", timestamps=" + Arrays.toString(timestamps) +
+                ", componentsScanned=" + componentsScanned +
+                ", ipcCount=" + ipcCount +
+                ", componentsChanged=" + componentsChanged +
+                ", timedOut=" + timedOut +
+                '}';
+    }
+}
@@ -0,0 +1,16 @@
+package com.snap.stuffing.api;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives the {@link SwitchMetrics} of app family switches, e.g. to log where the switch time goes.
+ *
+ * Invoked on the main thread of the new process, when its first activity is created.
+ */
+public interface SwitchMetricsListener {
+
+    /**
+     * @param metrics the timings and costs of the switch that led to the current process
+     */
+    void onSwitchCompleted(@NonNull SwitchMetrics metrics);
+}
@@ -0,0 +1,21 @@
+package com.snap.stuffing.api.exopackage;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Registers an {@link ApplicationLike} in the {@link ApplicationLikeFactory} generated by the stuffing processor, so it
+ * can be created without reflection. The annotated class must be public, non-abstract, and have a public constructor
+ * that takes an {@link android.app.Application}.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface ApplicationLikeEntry {
+
+    /**
+     * The app families this {@link ApplicationLike} is created for, if any. An app family can only be registered once.
+     */
+    String[] appFamilies() default {};
+}
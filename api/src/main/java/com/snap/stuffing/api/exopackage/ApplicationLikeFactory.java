@@ -0,0 +1,32 @@
+package com.snap.stuffing.api.exopackage;
+
+import android.app.Application;
+
+/**
+ * Creates {@link ApplicationLike} instances without reflection. An implementation is generated by the stuffing
+ * processor for the classes annotated with {@link ApplicationLikeEntry}, as a switch over their keys.
+ */
+public interface ApplicationLikeFactory {
+
+    /**
+     * @return a new instance of the {@link ApplicationLike} class named {@code className}, or {@code null} if that
+     *     class isn't registered.
+     */
+    // @Nullable  - Don't want to force a reference to that annotation in the primary dex.
+    ApplicationLike createApplicationLike(String className, Application application);
+
+    /**
+     * @return a new instance of the {@link ApplicationLike} registered for the {@code appFamily}, or {@code null} if
+     *     none is.
+     */
+    // @Nullable  - Don't want to force a reference to that annotation in the primary dex.
+    ApplicationLike createApplicationLikeForAppFamily(String appFamily, Application application);
+
+    /**
+     * @return the binary name of the {@link ApplicationLike} class registered for the {@code appFamily}, or
+     *     {@code null} if none is. Unlike {@link #createApplicationLikeForAppFamily(String, Application)}, this doesn't
+     *     load that class.
+     */
+    // @Nullable  - Don't want to force a reference to that annotation in the primary dex.
+    String getApplicationLikeClassNameForAppFamily(String appFamily);
+}
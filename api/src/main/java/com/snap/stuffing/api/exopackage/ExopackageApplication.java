@@ -11,6 +11,10 @@ import java.lang.reflect.Constructor;
  * instance. This is used in conjunction with secondary dex files so that the logic that would
  * normally live in the Application class is loaded after the secondary dexes are loaded.
  *
+ * When the secondary dex flag (1) is set in the exopackage flags, the code of each app family is
+ * packaged in separate secondary dex files, and only the dex files of the app families whose
+ * components may be enabled are loaded by {@link ExopackageDexLoader}.
+ *
  * Forked from https://github.com/facebook/buck/blob/master/android/com/facebook/buck/android/support/exopackage/ExopackageApplication.java
  */
 public abstract class ExopackageApplication<T extends ApplicationLike> extends Application {
@@ -22,6 +26,7 @@ public abstract class ExopackageApplication<T extends ApplicationLike> extends A
 
     private final String delegateClassName;
     private final int exopackageFlags;
+    private final ApplicationLikeFactory applicationLikeFactory;
     private T delegate;
 
     /**
@@ -39,8 +44,23 @@ public abstract class ExopackageApplication<T extends ApplicationLike> extends A
      *     current build. This should usually be {@code BuildConfig.EXOPACKAGE_FLAGS}.
      */
     protected ExopackageApplication(String delegateClassName, int exopackageFlags) {
+        this(delegateClassName, exopackageFlags, null);
+    }
+
+    /**
+     * @param delegateClassName The fully-qualified name of the {@link ApplicationLike} class that
+     *     will act as the delegate for application lifecycle callbacks.
+     * @param exopackageFlags Bitmask used to determine which exopackage feature is enabled in the
+     *     current build. This should usually be {@code BuildConfig.EXOPACKAGE_FLAGS}.
+     * @param applicationLikeFactory Creates the delegate without reflection, usually the factory
+     *     generated for the {@link ApplicationLikeEntry} classes. Reflection is used if it is
+     *     {@code null} or doesn't know the delegate class.
+     */
+    protected ExopackageApplication(
+            String delegateClassName, int exopackageFlags, ApplicationLikeFactory applicationLikeFactory) {
         this.delegateClassName = delegateClassName;
         this.exopackageFlags = exopackageFlags;
+        this.applicationLikeFactory = applicationLikeFactory;
     }
 
     private boolean isExopackageEnabledForSecondaryDex() {
@@ -60,13 +80,17 @@ public abstract class ExopackageApplication<T extends ApplicationLike> extends A
     }
 
     private T createDelegate() {
-//        if (isExopackageEnabledForSecondaryDex()) {
-//            ExopackageDexLoader.loadExopackageJars(this, isExopackageEnabledForModules());
+        if (isExopackageEnabledForSecondaryDex()) {
+            // The code of each app family is packaged in its own secondary dex files. Those of the app families
+            // whose components may be enabled are loaded before the manifest providers are created, the others
+            // when the delegate creates the application of their app family.
+            ExopackageDexLoader.enableAppFamilyDexLoading();
+            ExopackageDexLoader.loadEnabledAppFamilyDexFiles(this);
 //            if (isExopackageEnabledForModules()) {
 //                ExoHelper.setupHotswap(this);
 //            }
-//        }
-//
+        }
+
 //        if (isExopackageEnabledForNativeLibraries()) {
 //            ExopackageSoLoader.init(this);
 //        }
@@ -75,6 +99,13 @@ public abstract class ExopackageApplication<T extends ApplicationLike> extends A
 //            ResourcesLoader.init(this);
 //        }
 
+        if (applicationLikeFactory != null) {
+            T delegate = (T) applicationLikeFactory.createApplicationLike(delegateClassName, this);
+            if (delegate != null) {
+                return delegate;
+            }
+        }
+
         try {
             // Use reflection to create the delegate so it doesn't need to go into the primary dex.
             Class<T> implClass = (Class<T>) Class.forName(delegateClassName);
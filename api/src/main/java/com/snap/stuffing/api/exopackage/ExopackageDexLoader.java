@@ -0,0 +1,325 @@
+package com.snap.stuffing.api.exopackage;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import dalvik.system.DexClassLoader;
+
+/**
+ * Loads the secondary dex files of an app family into the application class loader, so that only the code of the
+ * active app family is mapped and verified. The dex files are packaged by the 'family-dex.gradle' build script as
+ * the 'stuffing/dex/{appFamily}/' assets, and are extracted to the app storage the first time they are loaded.
+ *
+ * Loading is enabled by {@link ExopackageApplication} when its secondary dex exopackage flag is set, and is a no-op
+ * otherwise. Manifest providers are created before the application, and any enabled component can be started before
+ * the active app family is known, so the application first loads the dex files of every app family whose components
+ * may be enabled, as recorded by {@link #recordEnabledAppFamilies(Context, String...)}. The dex files of every app
+ * family are loaded until one is recorded, since all the components are enabled by the manifest.
+ */
+public final class ExopackageDexLoader {
+
+    private static final String TAG = "ExopackageDexLoader";
+
+    static final String APP_FAMILY_DEX_ASSET_DIR = "stuffing/dex";
+    private static final String EXTRACTED_DEX_DIR = "stuffing_dex";
+    private static final String OPTIMIZED_DEX_DIR = "stuffing_odex";
+    private static final String STAMP_FILE = "apk.stamp";
+    private static final String ENABLED_APP_FAMILIES_FILE = "enabled_app_families";
+
+    private static volatile boolean sEnabled = false;
+    private static final Set<String> sLoadedAppFamilies = new HashSet<>();
+
+    private ExopackageDexLoader() {}
+
+    static void enableAppFamilyDexLoading() {
+        sEnabled = true;
+    }
+
+    /**
+     * @return whether the dex files of the app families are packaged separately and must be loaded.
+     */
+    public static boolean isAppFamilyDexLoadingEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Loads the dex files of the app families whose components may be enabled, before any manifest component is
+     * created.
+     */
+    static void loadEnabledAppFamilyDexFiles(Context context) {
+        List<String> appFamilies = readEnabledAppFamilies(context);
+        if (appFamilies == null) {
+            try {
+                String[] names = context.getAssets().list(APP_FAMILY_DEX_ASSET_DIR);
+                appFamilies = names != null ? Arrays.asList(names) : new ArrayList<String>();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to list the app family dex files", e);
+            }
+        }
+        for (String appFamily : appFamilies) {
+            loadAppFamilyDexFiles(context, appFamily);
+        }
+    }
+
+    /**
+     * Records the {@code appFamilies} whose components may be enabled once the component changes in progress are
+     * written, so that their dex files are loaded when the next process starts. This must be called before any of
+     * their components is enabled, and is a no-op unless app family dex loading is enabled.
+     *
+     * A {@code null} or empty app family stands for components whose state is unknown, e.g. still in their manifest
+     * state, in which case the dex files of every app family are loaded.
+     */
+    public static synchronized void recordEnabledAppFamilies(Context context, String... appFamilies) {
+        if (!sEnabled) {
+            return;
+        }
+
+        File file = new File(context.getDir(EXTRACTED_DEX_DIR, Context.MODE_PRIVATE), ENABLED_APP_FAMILIES_FILE);
+        StringBuilder content = new StringBuilder();
+        for (String appFamily : appFamilies) {
+            if (appFamily == null || appFamily.isEmpty()) {
+                file.delete();
+                return;
+            }
+            content.append(appFamily).append('\n');
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            writeString(tmpFile, content.toString());
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Couldn't rename " + tmpFile + " to " + file);
+            }
+        } catch (IOException e) {
+            // Loading every app family on the next start is always safe, unlike loading the previous ones
+            file.delete();
+            Log.w(TAG, "STUFFING -- Failed to record the enabled app families", e);
+        }
+    }
+
+    /**
+     * @return the app families recorded by {@link #recordEnabledAppFamilies(Context, String...)}, or {@code null} if
+     *     none were.
+     */
+    private static List<String> readEnabledAppFamilies(Context context) {
+        File file = new File(context.getDir(EXTRACTED_DEX_DIR, Context.MODE_PRIVATE), ENABLED_APP_FAMILIES_FILE);
+        String content = readString(file);
+        if (content == null) {
+            return null;
+        }
+
+        List<String> appFamilies = new ArrayList<>();
+        for (String appFamily : content.split("\n")) {
+            if (!appFamily.isEmpty()) {
+                appFamilies.add(appFamily);
+            }
+        }
+        return appFamilies;
+    }
+
+    /**
+     * Loads the dex files of the {@code appFamily} into the class loader of the application, if app family dex loading
+     * is enabled and they aren't loaded yet. This must be called before any class of that app family is used.
+     *
+     * @return whether dex files were loaded by this call.
+     */
+    public static synchronized boolean loadAppFamilyDexFiles(Context context, String appFamily) {
+        if (!sEnabled || appFamily == null || appFamily.isEmpty() || sLoadedAppFamilies.contains(appFamily)) {
+            return false;
+        }
+
+        try {
+            List<File> dexFiles = extractAppFamilyDexFiles(context, appFamily);
+            if (!dexFiles.isEmpty()) {
+                addDexFilesToClassLoader(context, appFamily, dexFiles);
+            }
+            sLoadedAppFamilies.add(appFamily);
+
+            Log.d(TAG, "STUFFING -- Loaded " + dexFiles.size() + " dex files for app family " + appFamily);
+            return !dexFiles.isEmpty();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load the dex files of app family " + appFamily, e);
+        }
+    }
+
+    /**
+     * Copies the dex assets of the {@code appFamily} to the app storage, unless they were already copied from the
+     * current APK.
+     */
+    private static List<File> extractAppFamilyDexFiles(Context context, String appFamily) throws IOException {
+        AssetManager assets = context.getAssets();
+        String assetDir = APP_FAMILY_DEX_ASSET_DIR + "/" + appFamily;
+        String[] names = assets.list(assetDir);
+        List<File> dexFiles = new ArrayList<>();
+        if (names == null || names.length == 0) {
+            return dexFiles;
+        }
+        Arrays.sort(names);
+
+        File dexDir = new File(context.getDir(EXTRACTED_DEX_DIR, Context.MODE_PRIVATE), appFamily);
+        File stampFile = new File(dexDir, STAMP_FILE);
+        File apkFile = new File(context.getApplicationInfo().sourceDir);
+        String stamp = apkFile.lastModified() + ":" + apkFile.length();
+        boolean upToDate = stamp.equals(readString(stampFile));
+
+        if (!upToDate) {
+            deleteRecursively(dexDir);
+            if (!dexDir.mkdirs()) {
+                throw new IOException("Couldn't create " + dexDir);
+            }
+        }
+
+        for (String name : names) {
+            File dexFile = new File(dexDir, name);
+            if (!upToDate) {
+                copyAsset(assets, assetDir + "/" + name, dexFile);
+            }
+            dexFiles.add(dexFile);
+        }
+
+        if (!upToDate) {
+            writeString(stampFile, stamp);
+        }
+        return dexFiles;
+    }
+
+    /**
+     * Appends the dex elements of a class loader over the {@code dexFiles} to the dex elements of the application class
+     * loader, the same way the multidex support library does.
+     */
+    private static void addDexFilesToClassLoader(Context context, String appFamily, List<File> dexFiles)
+            throws ReflectiveOperationException {
+        ClassLoader appClassLoader = context.getClassLoader();
+
+        StringBuilder dexPath = new StringBuilder();
+        for (File dexFile : dexFiles) {
+            if (dexPath.length() > 0) {
+                dexPath.append(File.pathSeparatorChar);
+            }
+            dexPath.append(dexFile.getAbsolutePath());
+        }
+
+        // ART compiles the dex files on its own, the optimized directory is only used by Dalvik.
+        File optimizedDir = Build.VERSION.SDK_INT < 21
+                ? new File(context.getDir(OPTIMIZED_DEX_DIR, Context.MODE_PRIVATE), appFamily)
+                : null;
+        if (optimizedDir != null) {
+            optimizedDir.mkdirs();
+        }
+        DexClassLoader familyClassLoader = new DexClassLoader(
+                dexPath.toString(),
+                optimizedDir != null ? optimizedDir.getAbsolutePath() : null,
+                null,
+                appClassLoader.getParent());
+
+        Object appPathList = getField(appClassLoader, "pathList");
+        Object familyPathList = getField(familyClassLoader, "pathList");
+        Field dexElementsField = findField(appPathList, "dexElements");
+        Object[] appElements = (Object[]) dexElementsField.get(appPathList);
+        Object[] familyElements = (Object[]) findField(familyPathList, "dexElements").get(familyPathList);
+
+        Object[] combined = (Object[]) Array.newInstance(
+                appElements.getClass().getComponentType(), appElements.length + familyElements.length);
+        System.arraycopy(appElements, 0, combined, 0, appElements.length);
+        System.arraycopy(familyElements, 0, combined, appElements.length, familyElements.length);
+        dexElementsField.set(appPathList, combined);
+    }
+
+    private static Object getField(Object instance, String name) throws ReflectiveOperationException {
+        return findField(instance, name).get(instance);
+    }
+
+    private static Field findField(Object instance, String name) throws NoSuchFieldException {
+        for (Class<?> clazz = instance.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+            try {
+                Field field = clazz.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // Look in the superclass
+            }
+        }
+        throw new NoSuchFieldException(name + " in " + instance.getClass());
+    }
+
+    private static void copyAsset(AssetManager assets, String assetPath, File target) throws IOException {
+        File tmpFile = new File(target.getPath() + ".tmp");
+        InputStream input = assets.open(assetPath);
+        try {
+            OutputStream output = new FileOutputStream(tmpFile);
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+        if (!tmpFile.renameTo(target)) {
+            throw new IOException("Couldn't rename " + tmpFile + " to " + target);
+        }
+    }
+
+    private static String readString(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            InputStream input = new FileInputStream(file);
+            try {
+                byte[] bytes = new byte[(int) file.length()];
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int read = input.read(bytes, offset, bytes.length - offset);
+                    if (read == -1) {
+                        break;
+                    }
+                    offset += read;
+                }
+                return new String(bytes, 0, offset, "UTF-8");
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(File file, String value) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(value.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,16 @@
+package com.snap.stuffing.api.exopackage;
+
+/**
+ * An {@link ApplicationLike} that can be torn down while its process keeps running, such that the application of
+ * another app family can be created in the same process after a switch. Applications that don't implement this
+ * interface are switched by restarting the process.
+ */
+public interface LiveSwappableApplicationLike extends ApplicationLike {
+
+    /**
+     * Invoked before this application is replaced by the application of another app family, once its activities were
+     * asked to finish. Implementations must release their Dagger component and singletons, unregister their callbacks
+     * and stop their background work, since this instance is never used again.
+     */
+    void onTearDown();
+}
@@ -0,0 +1,86 @@
+package com.snap.stuffing.bindings;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks the activities of the process that are not destroyed yet, such that they can be finished before the
+ * application they belong to is torn down.
+ */
+final class ActivityTracker implements Application.ActivityLifecycleCallbacks {
+
+    private final Set<Activity> mActivities = new LinkedHashSet<>();
+    @Nullable private Runnable mOnAllDestroyed = null;
+
+    /**
+     * Finishes all the tracked activities. Since activities are destroyed asynchronously, {@code onAllDestroyed} is run
+     * once none is left: right away if there is none, and otherwise on the main thread once the last one is destroyed.
+     *
+     * @return the number of activities asked to finish.
+     */
+    int finishAll(@NonNull Runnable onAllDestroyed) {
+        List<Activity> activities;
+        synchronized (mActivities) {
+            activities = new ArrayList<>(mActivities);
+            if (!activities.isEmpty()) {
+                mOnAllDestroyed = onAllDestroyed;
+            }
+        }
+        if (activities.isEmpty()) {
+            onAllDestroyed.run();
+            return 0;
+        }
+
+        for (Activity activity : activities) {
+            if (!activity.isFinishing()) {
+                activity.finish();
+            }
+        }
+        return activities.size();
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        synchronized (mActivities) {
+            mActivities.add(activity);
+        }
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        Runnable onAllDestroyed = null;
+        synchronized (mActivities) {
+            mActivities.remove(activity);
+            if (mActivities.isEmpty()) {
+                onAllDestroyed = mOnAllDestroyed;
+                mOnAllDestroyed = null;
+            }
+        }
+        if (onAllDestroyed != null) {
+            onAllDestroyed.run();
+        }
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {}
+
+    @Override
+    public void onActivityResumed(Activity activity) {}
+
+    @Override
+    public void onActivityPaused(Activity activity) {}
+
+    @Override
+    public void onActivityStopped(Activity activity) {}
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+}
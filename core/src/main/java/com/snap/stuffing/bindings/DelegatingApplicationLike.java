@@ -1,13 +1,20 @@
 package com.snap.stuffing.bindings;
 
+import com.snap.stuffing.api.LiveAppSwapper;
 import com.snap.stuffing.api.exopackage.ApplicationLike;
+import com.snap.stuffing.api.exopackage.ApplicationLikeFactory;
+import com.snap.stuffing.api.exopackage.ExopackageDexLoader;
+import com.snap.stuffing.api.exopackage.LiveSwappableApplicationLike;
 import android.app.Activity;
 import android.app.Application;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.Intent;
 import android.content.res.Configuration;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
 import dagger.android.AndroidInjector;
 import dagger.android.HasActivityInjector;
@@ -21,23 +28,49 @@ import java.lang.reflect.Constructor;
  * An {@link ApplicationLike} implementation that allows delegation to difference underling applications. The
  * {@link ApplicationLike} types that this class delegates to must be configured for Dagger injection, and implement the
  * {@link HasServiceInjector}, {@link HasBroadcastReceiverInjector} and {@link HasActivityInjector} interfaces.
+ *
+ * The delegate is created once, and can then be read without acquiring any monitor. The injectors of the delegate are
+ * also cached the first time they are available, so injecting activities, services, receivers and providers only reads
+ * a volatile field.
+ *
+ * When the delegate implements {@link LiveSwappableApplicationLike}, this class can also be provided as the
+ * {@link LiveAppSwapper} of the {@link com.snap.stuffing.api.DynamicAppConfig}. Switches to an app family whose
+ * delegate is live-swappable as well then finish the activities of the delegate, tear it down once they are destroyed,
+ * and create the delegate of the new app family with {@link #createApplication()} in the same process.
  */
 public abstract class DelegatingApplicationLike implements
         ApplicationLike,
+        LiveAppSwapper,
         HasActivityInjector,
         HasBroadcastReceiverInjector,
         HasServiceInjector,
         HasContentProviderInjector {
 
-    private volatile ApplicationLike mApplicationLike = null;
+    private static final String TAG = "DelegatingApplicationLike";
+
+    private volatile Delegate mDelegate = null;
     protected final Application mApplication;
+    @Nullable private final ApplicationLikeFactory mApplicationLikeFactory;
+    private final ActivityTracker mActivityTracker = new ActivityTracker();
 
     protected DelegatingApplicationLike(@NonNull Application application) {
+        this(application, null);
+    }
+
+    /**
+     * @param applicationLikeFactory Used by {@link #instantiateApplicationLikeClass(String)} to create delegates without
+     *     reflection, usually the factory generated for the {@link com.snap.stuffing.api.exopackage.ApplicationLikeEntry}
+     *     classes.
+     */
+    protected DelegatingApplicationLike(@NonNull Application application,
+                                        @Nullable ApplicationLikeFactory applicationLikeFactory) {
         mApplication = application;
+        mApplicationLikeFactory = applicationLikeFactory;
     }
 
     @Override
     public void onCreate() {
+        mApplication.registerActivityLifecycleCallbacks(mActivityTracker);
         getApplication().onCreate();
     }
 
@@ -66,11 +99,23 @@ public abstract class DelegatingApplicationLike implements
         return getApplication().getSystemService(s);
     }
 
-    public synchronized ApplicationLike getApplication() {
-        if (mApplicationLike == null) {
-            mApplicationLike = createApplication();
+    public ApplicationLike getApplication() {
+        return getDelegate().mApplicationLike;
+    }
+
+    @NonNull
+    private Delegate getDelegate() {
+        Delegate delegate = mDelegate;
+        if (delegate == null) {
+            synchronized (this) {
+                delegate = mDelegate;
+                if (delegate == null) {
+                    delegate = new Delegate(createApplication());
+                    mDelegate = delegate;
+                }
+            }
         }
-        return mApplicationLike;
+        return delegate;
     }
 
     @NonNull
@@ -78,26 +123,146 @@ public abstract class DelegatingApplicationLike implements
 
     @Override
     public AndroidInjector<Activity> activityInjector() {
-        return ((HasActivityInjector) getApplication()).activityInjector();
+        Delegate delegate = getDelegate();
+        AndroidInjector<Activity> injector = delegate.mActivityInjector;
+        if (injector == null) {
+            injector = ((HasActivityInjector) delegate.mApplicationLike).activityInjector();
+            delegate.mActivityInjector = injector;
+        }
+        return injector;
     }
 
     @Override
     public AndroidInjector<BroadcastReceiver> broadcastReceiverInjector() {
-        return ((HasBroadcastReceiverInjector) getApplication()).broadcastReceiverInjector();
+        Delegate delegate = getDelegate();
+        AndroidInjector<BroadcastReceiver> injector = delegate.mBroadcastReceiverInjector;
+        if (injector == null) {
+            injector = ((HasBroadcastReceiverInjector) delegate.mApplicationLike).broadcastReceiverInjector();
+            delegate.mBroadcastReceiverInjector = injector;
+        }
+        return injector;
     }
 
     @Override
     public AndroidInjector<Service> serviceInjector() {
-        return ((HasServiceInjector) getApplication()).serviceInjector();
+        Delegate delegate = getDelegate();
+        AndroidInjector<Service> injector = delegate.mServiceInjector;
+        if (injector == null) {
+            injector = ((HasServiceInjector) delegate.mApplicationLike).serviceInjector();
+            delegate.mServiceInjector = injector;
+        }
+        return injector;
     }
 
     @Override
     public AndroidInjector<ContentProvider> contentProviderInjector() {
-        return ((HasContentProviderInjector) getApplication()).contentProviderInjector();
+        Delegate delegate = getDelegate();
+        AndroidInjector<ContentProvider> injector = delegate.mContentProviderInjector;
+        if (injector == null) {
+            injector = ((HasContentProviderInjector) delegate.mApplicationLike).contentProviderInjector();
+            delegate.mContentProviderInjector = injector;
+        }
+        return injector;
+    }
+
+    /**
+     * Returns true if both the running delegate and the {@link ApplicationLike} of {@code toAppFamily} implement
+     * {@link LiveSwappableApplicationLike}, and the class of the latter can be loaded, see
+     * {@link #getApplicationLikeClassForAppFamily(String)}.
+     */
+    @Override
+    public boolean canSwapInProcess(@NonNull String toAppFamily) {
+        Delegate delegate = mDelegate;
+        if (delegate == null || !(delegate.mApplicationLike instanceof LiveSwappableApplicationLike)) {
+            return false;
+        }
+
+        Class<?> target = getApplicationLikeClassForAppFamily(toAppFamily);
+        return target != null && LiveSwappableApplicationLike.class.isAssignableFrom(target);
+    }
+
+    /**
+     * Returns the {@link ApplicationLike} class that {@link #createApplication()} creates for the {@code appFamily},
+     * without initializing it, or {@code null} if it's unknown or its code can't be loaded in this process.
+     *
+     * The default implementation looks the class up with the {@link ApplicationLikeFactory}, and should be overridden
+     * when delegates are created another way.
+     */
+    @Nullable
+    protected Class<?> getApplicationLikeClassForAppFamily(@NonNull String appFamily) {
+        if (mApplicationLikeFactory == null) {
+            return null;
+        }
+        String className = mApplicationLikeFactory.getApplicationLikeClassNameForAppFamily(appFamily);
+        if (className == null) {
+            return null;
+        }
+
+        loadAppFamilyCode(appFamily);
+
+        try {
+            return Class.forName(className, false, mApplication.getClassLoader());
+        } catch (ClassNotFoundException | RuntimeException e) {
+            Log.w(TAG, "STUFFING -- Can't load " + className + " for " + appFamily, e);
+            return null;
+        }
     }
 
+    /**
+     * Finishes the activities of the current delegate, and once they are all destroyed, tears the delegate down, then
+     * creates and starts the delegate of the new app family with {@link #createApplication()}. Must be invoked on the
+     * main thread.
+     */
+    @Override
+    public void swapToAppFamily(@NonNull final String toAppFamily, @Nullable final Intent relaunchIntent) {
+        final ApplicationLike previous = getApplication();
+        if (!(previous instanceof LiveSwappableApplicationLike)) {
+            throw new IllegalStateException(previous.getClass().getName() + " can't be swapped in-process");
+        }
+
+        int finishedActivityCount = mActivityTracker.finishAll(new Runnable() {
+            @Override
+            public void run() {
+                completeSwap((LiveSwappableApplicationLike) previous, toAppFamily, relaunchIntent);
+            }
+        });
+        Log.d(TAG, "STUFFING -- Swapping " + previous.getClass().getName() + " to " + toAppFamily +
+                ", finishedActivityCount=" + finishedActivityCount);
+    }
+
+    private void completeSwap(@NonNull LiveSwappableApplicationLike previous,
+                              @NonNull String toAppFamily,
+                              @Nullable Intent relaunchIntent) {
+        Log.d(TAG, "STUFFING -- Tearing down " + previous.getClass().getName() + " to swap to " + toAppFamily);
+        previous.onTearDown();
+
+        // The new delegate is only published once created, so readers never see its injectors before they are
+        // injected. Injectors cached for the previous delegate are dropped along with it.
+        ApplicationLike next = createApplication();
+        next.onCreate();
+        synchronized (this) {
+            mDelegate = new Delegate(next);
+        }
+
+        if (relaunchIntent != null) {
+            mApplication.startActivity(relaunchIntent);
+        }
+    }
+
+    /**
+     * Creates the {@link ApplicationLike} named {@code applicationClassName} with the {@link ApplicationLikeFactory} if
+     * it knows that class, and with reflection otherwise.
+     */
     @NonNull
     protected ApplicationLike instantiateApplicationLikeClass(@NonNull String applicationClassName) {
+        if (mApplicationLikeFactory != null) {
+            ApplicationLike applicationLike =
+                    mApplicationLikeFactory.createApplicationLike(applicationClassName, mApplication);
+            if (applicationLike != null) {
+                return applicationLike;
+            }
+        }
+
         try {
             Class<?> implClass = Class.forName(applicationClassName);
             Constructor<?> constructor = implClass.getConstructor(new Class[]{ Application.class });
@@ -106,4 +271,46 @@ public abstract class DelegatingApplicationLike implements
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Loads the code of the {@code appFamily}, then creates the {@link ApplicationLike} registered for it with the
+     * {@link ApplicationLikeFactory}.
+     *
+     * @return the new {@link ApplicationLike}, or {@code null} if there is no factory or it doesn't know the app family.
+     */
+    @Nullable
+    protected ApplicationLike instantiateApplicationLikeForAppFamily(@NonNull String appFamily) {
+        loadAppFamilyCode(appFamily);
+        if (mApplicationLikeFactory == null) {
+            return null;
+        }
+        return mApplicationLikeFactory.createApplicationLikeForAppFamily(appFamily, mApplication);
+    }
+
+    /**
+     * Loads the secondary dex files of the {@code appFamily}, when the code of each app family is packaged separately,
+     * see {@link ExopackageDexLoader}. This must be called before any class of the app family is used, and is already
+     * called by {@link #instantiateApplicationLikeForAppFamily(String)} and
+     * {@link #getApplicationLikeClassForAppFamily(String)}.
+     */
+    protected void loadAppFamilyCode(@NonNull String appFamily) {
+        ExopackageDexLoader.loadAppFamilyDexFiles(mApplication, appFamily);
+    }
+
+    /**
+     * The current delegate along with its injectors, which are usually injected in its onCreate() so they are only
+     * cached once non-null.
+     */
+    private static final class Delegate {
+        final ApplicationLike mApplicationLike;
+
+        volatile AndroidInjector<Activity> mActivityInjector = null;
+        volatile AndroidInjector<BroadcastReceiver> mBroadcastReceiverInjector = null;
+        volatile AndroidInjector<Service> mServiceInjector = null;
+        volatile AndroidInjector<ContentProvider> mContentProviderInjector = null;
+
+        Delegate(@NonNull ApplicationLike applicationLike) {
+            mApplicationLike = applicationLike;
+        }
+    }
 }
@@ -3,6 +3,8 @@ package com.snap.stuffing.bindings;
 import com.snap.stuffing.api.AppSwitchHook;
 import com.snap.stuffing.api.DynamicAppConfig;
 import com.snap.stuffing.api.DynamicAppManager;
+import com.snap.stuffing.api.SwitchMetricsListener;
+import com.snap.stuffing.lib.ComponentStateStore;
 import com.snap.stuffing.lib.MultiDynamicAppManager;
 import com.snap.stuffing.lib.SingleDynamicAppManager;
 import dagger.Module;
@@ -10,6 +12,7 @@ import dagger.Provides;
 
 import android.app.Application;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import javax.inject.Singleton;
 
@@ -49,4 +52,35 @@ public class DynamicAppModule {
                 appSwitchHook));
     }
 
+    /**
+     * Same as {@link #makeMultiAppModule(Application, String, DynamicAppConfig, AppSwitchHook)}, additionally reporting
+     * the timings and costs of every app family switch to the {@link SwitchMetricsListener}.
+     */
+    @NonNull
+    public static DynamicAppModule makeMultiAppModule(
+            @NonNull Application app,
+            @NonNull String defaultAppFamily,
+            @NonNull DynamicAppConfig dynamicAppConfig,
+            @NonNull AppSwitchHook appSwitchHook,
+            @NonNull SwitchMetricsListener switchMetricsListener) {
+        return new DynamicAppModule(new MultiDynamicAppManager(app, defaultAppFamily, dynamicAppConfig,
+                appSwitchHook, switchMetricsListener));
+    }
+
+    /**
+     * Same as {@link #makeMultiAppModule(Application, String, DynamicAppConfig, AppSwitchHook, SwitchMetricsListener)},
+     * reading and writing component states through the {@link ComponentStateStore} instead of the PackageManager.
+     */
+    @NonNull
+    public static DynamicAppModule makeMultiAppModule(
+            @NonNull Application app,
+            @NonNull String defaultAppFamily,
+            @NonNull DynamicAppConfig dynamicAppConfig,
+            @NonNull AppSwitchHook appSwitchHook,
+            @Nullable SwitchMetricsListener switchMetricsListener,
+            @NonNull ComponentStateStore componentStateStore) {
+        return new DynamicAppModule(new MultiDynamicAppManager(app, defaultAppFamily, dynamicAppConfig,
+                appSwitchHook, switchMetricsListener, componentStateStore));
+    }
+
 }
@@ -2,39 +2,100 @@ package com.snap.stuffing.lib
 
 import android.content.ComponentName
 import android.content.Context
-import android.content.pm.ComponentInfo
-import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
 import android.app.Application
 import android.app.Activity
 import android.content.Intent
-import android.os.Build
 import android.util.Log
-import java.util.Arrays
 
 private val TAG = "AppComponentModifier"
 
+/**
+ * Receives the number of components applied so far, and the total number of components to apply.
+ */
+internal typealias ProgressCallback = (appliedComponentCount: Int, totalComponentCount: Int) -> Unit
+
 /**
  * Responsible for enabling and disabling [Application] components based on which 'appFamily' is enabled. Components
  * in the application manifest can be tagged with an 'appFamilies' meta-data attribute used to inform which appFamilies
  * the component should be enabled for.
+ *
+ * The components and their meta-data are read from the [ComponentIndex] generated at build time, so the
+ * [PackageManager] is only used to read and write component enabled states, through a [ComponentStateStore]. App
+ * families are interned once per process into the bitmasks of a [ComponentTable].
+ *
+ * Every change is first computed as an immutable [SwitchPlan] by a [SwitchPlanner], which can also be used to estimate
+ * the cost of a switch without modifying any component.
+ *
+ * The last applied state is recorded in an [AppliedComponentSnapshot] stored in the [DynamicAppState], which allows
+ * switching between two app families by only writing the components that differ between them, without reading their
+ * current states first.
+ *
+ * The main activity of each app family is cached in memory and in the [AppliedComponentSnapshot], so resolving it on
+ * a cold start doesn't require loading the [ComponentTable].
+ *
+ * Switches can defer their non-critical components (see [SwitchPlanner.isCritical]): only launch-critical components
+ * are applied synchronously, and the others are applied later through [applyDeferredComponents].
+ *
+ * All the changes of a switch are written with a single [ComponentStateStore.setComponentEnabledSettings] call, which
+ * is one binder call per [BATCH_WRITE_SIZE] components on API 33+ and one binder call per component on older API
+ * levels. The calls are counted and timed by the [componentStateStore].
+ *
+ * When [launcherAliasRouting] is enabled, components tagged with a 'launcherForAppFamilies' meta-data attribute
+ * (usually launcher activity-aliases targeting the main activity of an app family) are only enabled for those app
+ * families, and the [DynamicLaunchActivity] is disabled whenever the target app family has such an alias. The launcher
+ * then opens the app family's main activity directly, and the [DynamicLaunchActivity] only remains as a fallback for
+ * app families without an alias.
+ *
+ * When the manifest 'android:enabled' defaults were aligned with an app family at build time, switching a freshly
+ * installed app to that app family only writes the components that couldn't be aligned.
+ *
+ * Switches executed with [executeSwitch] report [SwitchCheckpoint]s while writing their components, which can be
+ * persisted to resume them with [planResumedSwitch] if the process dies midway. Their [AppliedComponents] are recorded
+ * by the caller along with the rest of the state, see [appliedComponents].
  */
-internal class AppComponentModifier(private val context: Context) {
-    private val packageManager: PackageManager by lazy { context.packageManager }
+internal class AppComponentModifier(
+        private val context: Context,
+        private val launcherAliasRouting: Boolean,
+        componentStateStore: ComponentStateStore = PackageManagerComponentStateStore(context),
+        private val loadComponentTable: () -> ComponentTable = { ComponentIndex.load(context) },
+        private val stateStore: () -> DynamicAppStateStore,
+        private val appVersionCode: () -> Int) {
+
+    /**
+     * The store used to read and write component states, which counts its binder calls to report them in
+     * [com.snap.stuffing.api.SwitchMetrics].
+     */
+    val componentStateStore = InstrumentedComponentStateStore(componentStateStore)
 
-    private val queryDisableFlag = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-        PackageManager.MATCH_DISABLED_COMPONENTS
-    } else {
-        PackageManager.GET_DISABLED_COMPONENTS
+    private val planner: SwitchPlanner by lazy {
+        SwitchPlanner(loadComponentTable(), launcherAliasRouting, DynamicLaunchActivity::class.java.name)
     }
 
+    private val componentTable: ComponentTable
+        get() = planner.table
+
+    private val snapshot: AppliedComponentSnapshot by lazy { AppliedComponentSnapshot(stateStore()) }
+
+    /**
+     * Main activity class names keyed by lower-cased app family. An empty string means the family has no main activity.
+     */
+    private val mainActivities = HashMap<String, String>()
+
+    /**
+     * The components disabled by the last switch, including its deferred components, keyed by class name.
+     */
+    @Volatile
+    var lastDisabledComponents: Map<String, ComponentType> = emptyMap()
+        private set
+
     /**
      * Gets the default [Activity] class name for the [appFamily] as specified in the application's manifest.
      *
      * Returns null if none is specified in the manifest.
      */
     fun getDefaultActivityClassNameForAppFamily(appFamily: String): String? {
-        return getMainActivityForAppFamily(appFamily)?.name
+        return getMainActivityForAppFamily(appFamily)
     }
 
     /**
@@ -45,7 +106,7 @@ internal class AppComponentModifier(private val context: Context) {
     fun getLaunchIntentForAppFamily(appFamily: String): Intent? {
         val launchActivity = getMainActivityForAppFamily(appFamily) ?: return null
 
-        return Intent.makeMainActivity(launchActivity.componentName()).apply {
+        return Intent.makeMainActivity(ComponentName(context.packageName, launchActivity)).apply {
             addFlags(Intent.FLAG_ACTIVITY_NEW_TASK or Intent.FLAG_ACTIVITY_CLEAR_TASK)
         }
     }
@@ -57,64 +118,162 @@ internal class AppComponentModifier(private val context: Context) {
      * @return True if this component was ever modified, false otherwise.
      */
     fun checkComponentListModifiedState(): Boolean {
-        return packageManager.getComponentEnabledSetting(
-                ComponentName(context.packageName, StateTrackingService::class.java.name)) !=
-                    PackageManager.COMPONENT_ENABLED_STATE_DEFAULT
+        return componentStateStore.getComponentEnabledSetting(StateTrackingService::class.java.name) !=
+                PackageManager.COMPONENT_ENABLED_STATE_DEFAULT
     }
 
-    private fun getMainActivityForAppFamily(appFamily: String): ComponentInfo? {
-        return listActivities().findLast {
-            it.metaData?.getString("mainForAppFamilies")?.toLowerCase().equals(appFamily.toLowerCase())
+    private fun getMainActivityForAppFamily(appFamily: String): String? {
+        val family = appFamily.trim().toLowerCase()
+
+        val className = synchronized(mainActivities) { mainActivities[family] } ?: run {
+            val versionCode = appVersionCode()
+            val resolved = snapshot.readMainActivity(family, versionCode, planner.fingerprint) ?: run {
+                val name = resolveMainActivity(family)
+                snapshot.writeMainActivity(family, name, versionCode, planner.fingerprint)
+                name
+            }
+            synchronized(mainActivities) { mainActivities[family] = resolved }
+            resolved
         }
+
+        return if (className.isEmpty()) null else className
+    }
+
+    /**
+     * Returns the main activity class name of the lower-cased [family] from the component index, or an empty string if
+     * it has none.
+     */
+    private fun resolveMainActivity(family: String): String {
+        val position = componentTable.findMainActivity(componentTable.families.idOf(family))
+        return if (position < 0) "" else componentTable.names[position]
+    }
+
+    /**
+     * Returns the cached main activities including the one of the [appFamily], for the caller to record them along
+     * with the rest of the state, which saves a separate state write when its launch intent is requested.
+     */
+    fun mainActivities(appFamily: String): MainActivities {
+        val family = appFamily.trim().toLowerCase()
+        val versionCode = appVersionCode()
+
+        val className = snapshot.readMainActivity(family, versionCode, planner.fingerprint)
+                ?: resolveMainActivity(family)
+        synchronized(mainActivities) { mainActivities[family] = className }
+        return snapshot.withMainActivity(family, className, versionCode, planner.fingerprint)
     }
 
     /**
-     * Switch the specified app family, enabling [Application] components that belong to that family and disabling those
-     * that don't. Components with no listed appFamilies meta-data attribute will be enabled for any appFamily.
+     * Plans a switch to the specified app family without modifying any component.
      *
-     * @return True if any component was modified as a result of this call, false otherwise.
+     * @param fullScan Ignore the [AppliedComponentSnapshot] and check the state of every component.
+     * @param fromManifestDefaults Assume every component is in its default state instead of reading it, which is only
+     * valid when no component was ever modified.
+     */
+    @Synchronized
+    fun planSwitchToAppFamily(appFamily: String,
+                              fullScan: Boolean = false,
+                              fromManifestDefaults: Boolean = false): SwitchPlan {
+        return planTarget(appFamily.trim().toLowerCase(), fullScan, fromManifestDefaults)
+    }
+
+    /**
+     * Plans resetting all components to their state in the source manifest without modifying any component.
      */
-    fun switchToAppFamily(appFamily: String, tag: String): Boolean {
-        Log.d(tag, "STUFFING -- Switching to app family: $appFamily...")
+    @Synchronized
+    fun planResetAllComponents(): SwitchPlan {
+        return planTarget(RESET_TARGET, false, false)
+    }
 
-        var componentsChanged = false
+    /**
+     * Creates the checkpoint of a switch to the [appFamily] executing the [plan], before any of its components is
+     * written. When resuming the switch recorded by [resumeFrom], its cursor is kept if the [plan] is the same one.
+     */
+    fun checkpointSwitch(appFamily: String,
+                         plan: SwitchPlan,
+                         deferNonCritical: Boolean,
+                         resumeFrom: SwitchCheckpoint? = null): SwitchCheckpoint {
+        val planId = planId(plan.target, plan.previousTarget, deferNonCritical)
+        val cursor = if (resumeFrom != null && resumeFrom.planId == planId && !plan.fullScan) resumeFrom.cursor else 0
+        return SwitchCheckpoint(appFamily, plan.previousTarget, deferNonCritical, planId, cursor)
+    }
 
-        listComponents().forEach {
-            val appFamilies =
-                    it.metaData?.getString("appFamilies")?.split(',')?.map { f -> f.trim().toLowerCase() } ?: listOf()
+    /**
+     * Returns true if the switch recorded by the [checkpoint] was planned for the current component index and app
+     * version, in which case it can be resumed with [planResumedSwitch].
+     */
+    @Synchronized
+    fun canResumeSwitch(checkpoint: SwitchCheckpoint): Boolean {
+        val target = checkpoint.appFamily.trim().toLowerCase()
+        return checkpoint.planId == planId(target, checkpoint.previousTarget, checkpoint.deferNonCritical)
+    }
 
-            if (!appFamilies.isEmpty()) {
-                if (appFamilies.contains(appFamily.toLowerCase())) {
-                    Log.d(tag, "STUFFING -- Enabling component: ${it.name} with appFamilies $appFamilies")
-                    if (it.enable()) componentsChanged = true
-                } else {
-                    Log.d(tag, "STUFFING -- Disabling component: ${it.name} with appFamilies $appFamilies")
-                    if (it.disable()) componentsChanged = true
-                }
-            } else {
-                if (it.applyDefaultEnabledState()) componentsChanged = true
-            }
+    /**
+     * Plans the switch recorded by the [checkpoint] again. When it was planned from a known previous target, for the
+     * same component index and app version, the same plan is computed without reading any component. Otherwise, every
+     * component is read, which leaves out the components the interrupted switch already wrote.
+     */
+    @Synchronized
+    fun planResumedSwitch(checkpoint: SwitchCheckpoint): SwitchPlan {
+        val target = checkpoint.appFamily.trim().toLowerCase()
+        val previousTarget = checkpoint.previousTarget
+        if (previousTarget != null &&
+                checkpoint.planId == planId(target, previousTarget, checkpoint.deferNonCritical)) {
+            return planner.plan(target, previousTarget, PlanScope.ALL) { getEnabledSetting(it) }
         }
+        return planTarget(target, true, false)
+    }
 
-        Log.d(tag, "STUFFING -- Switching to app family: $appFamily complete. componentsChanged=$componentsChanged")
+    /**
+     * Executes the [plan] of a switch from the cursor of its [checkpoint], see [checkpointSwitch].
+     *
+     * Unlike the other switches, the snapshot is neither invalidated nor written back: the caller clears the
+     * [DynamicAppState.appliedComponents] in the same write that records the [checkpoint], and records the
+     * [appliedComponents] of the [plan] in the write that completes the switch.
+     *
+     * @param onCheckpoint Invoked with the progress of the switch every [SWITCH_CHECKPOINT_INTERVAL] components.
+     * @return The number of components modified as a result of this call, 0 if none.
+     */
+    @Synchronized
+    fun executeSwitch(plan: SwitchPlan,
+                      checkpoint: SwitchCheckpoint,
+                      tag: String,
+                      progress: ProgressCallback? = null,
+                      onCheckpoint: ((SwitchCheckpoint) -> Unit)? = null): Int {
+        Log.d(tag, "STUFFING -- Switching to app family: ${checkpoint.appFamily}, cursor=${checkpoint.cursor}...")
+
+        val componentsChanged = executePlan(
+                plan, tag, checkpoint.deferNonCritical, progress, checkpoint, onCheckpoint, recordApplied = false)
+
+        Log.d(tag, "STUFFING -- Switching to app family: ${checkpoint.appFamily} complete. " +
+                "componentsChanged=$componentsChanged")
         return componentsChanged
+    }
 
-        //printComponentEnabledStates(tag)
+    /**
+     * The snapshot to record once the [plan] was executed, deferring its non-critical components if
+     * [deferNonCritical] is set.
+     */
+    fun appliedComponents(plan: SwitchPlan, deferNonCritical: Boolean): AppliedComponents {
+        val deferred = deferNonCritical && plan.criticalFlags.any { !it }
+        return if (deferred) {
+            AppliedComponents(null, DeferredComponents(plan.target, plan.previousTarget), appVersionCode(),
+                    planner.fingerprint)
+        } else {
+            AppliedComponents(plan.target, null, appVersionCode(), planner.fingerprint)
+        }
     }
 
     /**
-     * Enable all [Application] components that belong to any family.
-     * @return True if any component was modified as a result of this call, false otherwise.
+     * Reset all [Application] components to their state in the source manifest, which enables the components that
+     * belong to any family unless they are disabled there. Components aligned at build time are explicitly enabled.
+     * @param progress Invoked with the number of components applied so far and the total number of components to apply.
+     * @return The number of components modified as a result of this call, 0 if none.
      */
-    fun resetAllComponents(tag: String): Boolean {
+    @Synchronized
+    fun resetAllComponents(tag: String, progress: ProgressCallback? = null): Int {
         Log.d(tag, "STUFFING -- Enabling all components...")
 
-        var componentsChanged = false
-
-        listComponents().forEach {
-            Log.d(tag, "STUFFING -- Enabling component to default state: ${it.name}")
-            if (it.applyDefaultEnabledState()) componentsChanged = true
-        }
+        val componentsChanged = executePlan(planResetAllComponents(), tag, false, progress)
 
         Log.d(tag, "STUFFING -- Enabling all complete. componentsChanged=$componentsChanged")
         return componentsChanged
@@ -123,96 +282,177 @@ internal class AppComponentModifier(private val context: Context) {
     }
 
     /**
-     * Logs the components in the manifest, stating whether they are enabled or disabled.
+     * Plans the enabled state of every component for the [target], which is either a lower-cased app family or
+     * [RESET_TARGET]. The plan starts from the [MANIFEST_DEFAULTS_TARGET] when [fromManifestDefaults] is set.
+     *
+     * When a valid snapshot of the previously applied target exists, the plan only contains the components whose state
+     * differs between both targets. Otherwise, every component's state is read to compute the plan, unless
+     * [fromManifestDefaults] is set.
      */
-    fun printComponentEnabledStates(tag: String = TAG) {
-        val componentGroups = listComponents().groupBy { it.getEnabledSetting() }
-        for (entry in componentGroups) {
-            Log.d(tag, "STUFFING -- Enabled (${convertEnabledSettingToString(entry.key)}):\n"
-                    + (entry.value.map { it.name }).joinToString("\n"))
+    private fun planTarget(target: String, fullScan: Boolean, fromManifestDefaults: Boolean): SwitchPlan {
+        if (fromManifestDefaults) {
+            // Components that were never modified are all in their default state. This also lets the deferred
+            // components be applied without reading their states.
+            return planner.plan(target, MANIFEST_DEFAULTS_TARGET, PlanScope.ALL) { getEnabledSetting(it) }
         }
+
+        val previousTarget = if (fullScan) null else snapshot.read(appVersionCode(), planner.fingerprint)
+        return planner.plan(target, previousTarget, PlanScope.ALL) { getEnabledSetting(it) }
     }
 
-    private fun convertEnabledSettingToString(componentEnabledSetting: Int): String {
-        return when (componentEnabledSetting) {
-            PackageManager.COMPONENT_ENABLED_STATE_DEFAULT -> "DEFAULT"
-            PackageManager.COMPONENT_ENABLED_STATE_DISABLED -> "DISABLED"
-            PackageManager.COMPONENT_ENABLED_STATE_DISABLED_UNTIL_USED -> "DISABLED_UNTIL_USED"
-            PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER -> "DISABLED_USER"
-            PackageManager.COMPONENT_ENABLED_STATE_ENABLED -> "ENABLED"
-            else -> "UNKNOWN"
+    /**
+     * Writes the component states of the [plan] and records the applied target in the [AppliedComponentSnapshot].
+     *
+     * @param deferNonCritical Only write the critical components of the [plan], and record the others to be applied by
+     * [applyDeferredComponents].
+     * @param checkpoint The checkpoint of the switch, whose cursor is the number of components to skip since an
+     * interrupted attempt already wrote them.
+     * @param recordApplied Invalidate the snapshot before writing any component and record the applied target once
+     * done, unless the caller does so along with the rest of the state.
+     * @return The number of components written, 0 if none.
+     */
+    private fun executePlan(plan: SwitchPlan,
+                            tag: String,
+                            deferNonCritical: Boolean,
+                            progress: ProgressCallback?,
+                            checkpoint: SwitchCheckpoint? = null,
+                            onCheckpoint: ((SwitchCheckpoint) -> Unit)? = null,
+                            recordApplied: Boolean = true): Int {
+        if (plan.alreadyApplied) {
+            Log.d(tag, "STUFFING -- Components already in state for ${plan.target}")
+            lastDisabledComponents = emptyMap()
+            return 0
         }
-    }
 
-    private fun listComponents(): List<ComponentInfo> {
-        val packageInfo = getPackageInfo(PackageManager.GET_RECEIVERS or
-                PackageManager.GET_SERVICES or
-                PackageManager.GET_PROVIDERS or
-                PackageManager.GET_META_DATA or
-                PackageManager.GET_ACTIVITIES)
+        Log.d(tag, "STUFFING -- Executing $plan")
 
-        val componentInfos = mutableListOf<ComponentInfo>()
-        packageInfo.services?.let { componentInfos.addAll(Arrays.asList(*packageInfo.services)) }
-        packageInfo.receivers?.let { componentInfos.addAll(Arrays.asList(*packageInfo.receivers)) }
-        packageInfo.providers?.let { componentInfos.addAll(Arrays.asList(*packageInfo.providers)) }
-        packageInfo.activities?.let { componentInfos.addAll(Arrays.asList(*packageInfo.activities)) }
-        return componentInfos
-    }
+        val writtenPlan = if (deferNonCritical) plan.partition(critical = true) else plan
+        val cursor = checkpoint?.cursor ?: 0
 
-    private fun listActivities(): List<ComponentInfo> {
-        val packageInfo = getPackageInfo(PackageManager.GET_ACTIVITIES or PackageManager.GET_META_DATA)
-        val componentInfos = mutableListOf<ComponentInfo>()
-        componentInfos.addAll(Arrays.asList(*packageInfo.activities))
-        return componentInfos
-    }
+        // Components written before the process started can't be running in it
+        val skippedPositions = writtenPlan.positions.copyOf(Math.min(cursor, writtenPlan.size)).toHashSet()
+        lastDisabledComponents = (0 until plan.size)
+                .filter { plan.states[it] == COMPONENT_STATE_DISABLED && plan.positions[it] !in skippedPositions }
+                .associate { componentTable.names[plan.positions[it]] to componentTable.types[plan.positions[it]] }
+
+        if (recordApplied) {
+            snapshot.invalidate()
+        }
+
+        // The cursor of a plan computed by reading every component can't be used to resume it, see SwitchCheckpoint
+        val checkpointListener = if (checkpoint != null && !plan.fullScan) onCheckpoint else null
+        writeEnabledSettings(writtenPlan, progress, checkpoint, checkpointListener)
 
-    private fun getPackageInfo(flags: Int): PackageInfo {
-        val packageInfo: PackageInfo
-        try {
-            packageInfo = packageManager.getPackageInfo(context.packageName, flags or queryDisableFlag)
-        } catch (e: PackageManager.NameNotFoundException) {
-            Log.e(TAG, "Couldn't query app components with flags $flags", e)
-            throw RuntimeException(e)
+        if (writtenPlan.size < plan.size) {
+            Log.d(tag, "STUFFING -- Deferred ${plan.size - writtenPlan.size} non-critical components")
         }
-        return packageInfo
+        if (recordApplied) {
+            snapshot.write(appliedComponents(plan, deferNonCritical))
+        }
+        return writtenPlan.size - Math.min(cursor, writtenPlan.size)
     }
 
-    private fun ComponentInfo.getEnabledSetting(): Int {
-        return packageManager.getComponentEnabledSetting(componentName())
+    /**
+     * Identifies the plan of a switch from the [previousTarget] to the [target], which can only be computed again for
+     * the same component index and app version.
+     */
+    private fun planId(target: String, previousTarget: String?, deferNonCritical: Boolean): Int {
+        var id = planner.fingerprint
+        id = 31 * id + appVersionCode()
+        id = 31 * id + target.hashCode()
+        id = 31 * id + (previousTarget?.hashCode() ?: 0)
+        return 31 * id + (if (deferNonCritical) 1 else 0)
     }
 
-    private fun ComponentInfo.disable(): Boolean {
-        return setComponentEnabledSetting(PackageManager.COMPONENT_ENABLED_STATE_DISABLED)
+    /**
+     * Returns true if a previous switch deferred some of its non-critical components.
+     */
+    fun hasDeferredComponents(): Boolean {
+        return snapshot.hasDeferredComponents()
     }
 
-    private fun ComponentInfo.enable(): Boolean {
-        return setComponentEnabledSetting(PackageManager.COMPONENT_ENABLED_STATE_ENABLED)
+    /**
+     * Applies the non-critical components deferred by a previous switch, if any. Since component states are only a
+     * function of the target, this can safely be retried after being interrupted.
+     *
+     * @return True if any component was modified as a result of this call, false otherwise.
+     */
+    @Synchronized
+    fun applyDeferredComponents(tag: String): Boolean {
+        val versionCode = appVersionCode()
+        val deferred = snapshot.readDeferred(versionCode, planner.fingerprint) ?: return false
+
+        Log.d(tag, "STUFFING -- Applying deferred components for ${deferred.target}...")
+
+        val plan = planner.plan(deferred.target, deferred.previousTarget, PlanScope.NON_CRITICAL) {
+            getEnabledSetting(it)
+        }
+        writeEnabledSettings(plan)
+
+        snapshot.write(AppliedComponents(deferred.target, null, versionCode, planner.fingerprint))
+
+        Log.d(tag, "STUFFING -- Applying deferred components complete. componentsChanged=${plan.size > 0}")
+        return plan.size > 0
     }
 
-    private fun ComponentInfo.applyDefaultEnabledState(): Boolean {
-        return setComponentEnabledSetting(PackageManager.COMPONENT_ENABLED_STATE_DEFAULT)
+    /**
+     * Logs the components in the manifest, stating whether they are enabled or disabled.
+     */
+    fun printComponentEnabledStates(tag: String = TAG) {
+        val componentGroups = (0 until componentTable.size).groupBy { getEnabledSetting(it) }
+        for (entry in componentGroups) {
+            Log.d(tag, "STUFFING -- Enabled (${convertEnabledSettingToString(entry.key)}):\n"
+                    + (entry.value.map { componentTable.names[it] }).joinToString("\n"))
+        }
     }
 
-    private fun ComponentInfo.setComponentEnabledSetting(value: Int): Boolean {
-        val componentName = componentName()
-        val previousValue = packageManager.getComponentEnabledSetting(componentName)
+    private fun convertEnabledSettingToString(componentEnabledSetting: Int): String {
+        return when (componentEnabledSetting) {
+            PackageManager.COMPONENT_ENABLED_STATE_DEFAULT -> "DEFAULT"
+            PackageManager.COMPONENT_ENABLED_STATE_DISABLED -> "DISABLED"
+            PackageManager.COMPONENT_ENABLED_STATE_DISABLED_UNTIL_USED -> "DISABLED_UNTIL_USED"
+            PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER -> "DISABLED_USER"
+            PackageManager.COMPONENT_ENABLED_STATE_ENABLED -> "ENABLED"
+            else -> "UNKNOWN"
+        }
+    }
 
-        if (previousValue != value) {
-            packageManager.setComponentEnabledSetting(
-                    componentName,
-                    value,
-                    PackageManager.DONT_KILL_APP)
+    private fun getEnabledSetting(position: Int): Int {
+        return componentStateStore.getComponentEnabledSetting(componentTable.names[position])
+    }
 
-            Log.d(TAG, "STUFFING -- Setting component $name state from ${convertEnabledSettingToString(previousValue)} "
-                    + "to ${convertEnabledSettingToString(value)}")
-            return true
+    /**
+     * Writes the component states of the [plan], skipping the components before the cursor of the [checkpoint].
+     *
+     * @param onCheckpoint Invoked with the [checkpoint] advanced to the components written so far, every
+     * [SWITCH_CHECKPOINT_INTERVAL] components.
+     */
+    private fun writeEnabledSettings(plan: SwitchPlan,
+                                     progress: ProgressCallback? = null,
+                                     checkpoint: SwitchCheckpoint? = null,
+                                     onCheckpoint: ((SwitchCheckpoint) -> Unit)? = null) {
+        val cursor = checkpoint?.cursor ?: 0
+        val remainingPlan = plan.drop(cursor)
+        if (remainingPlan.size == 0) return
+
+        for (i in 0 until remainingPlan.size) {
+            Log.d(TAG, "STUFFING -- Setting component ${componentTable.names[remainingPlan.positions[i]]} state to "
+                    + convertEnabledSettingToString(remainingPlan.states[i]))
         }
 
-        return false
-    }
+        var componentProgress: ProgressCallback? = null
+        if (progress != null || (checkpoint != null && onCheckpoint != null)) {
+            componentProgress = { writtenCount, _ ->
+                progress?.invoke(cursor + writtenCount, plan.size)
+                if (checkpoint != null && onCheckpoint != null && writtenCount < remainingPlan.size &&
+                        writtenCount % SWITCH_CHECKPOINT_INTERVAL == 0) {
+                    onCheckpoint(checkpoint.copy(cursor = cursor + writtenCount))
+                }
+            }
+        }
 
-    private fun ComponentInfo.componentName(): ComponentName {
-        return ComponentName(packageName, name)
+        componentStateStore.setComponentEnabledSettings(
+                remainingPlan.positions.map { componentTable.names[it] }, remainingPlan.states, componentProgress)
     }
 }
 
@@ -1,28 +1,21 @@
 package com.snap.stuffing.lib
 
-import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
-import android.content.IntentFilter
 import android.os.Bundle
-import android.os.Handler
-import android.os.Looper
+import android.os.SystemClock
 import android.app.Activity
 import android.support.v4.app.FragmentActivity
 import android.util.Log
 import com.snap.stuffing.api.AppSwitchConfiguration
+import com.snap.stuffing.api.AppWarmUpConfiguration
+import com.snap.stuffing.api.SwitchMetrics
 import dagger.android.AndroidInjection
 import javax.inject.Inject
 import javax.inject.Provider
 
 private const val TAG = "AppToggleActivity"
 
-/**
- * 11 second timeout. The PACKAGE_CHANGED intent should be received within 10s based on the constant in PackageManager,
- * so if it isn't received in 11s, then start the next activity.
- */
-private const val TOGGLE_TIMEOUT_MILLISECONDS = 11 * 1000L
-
 /**
  * An [Activity] responsible for managing the application switch process. It will run in a separate process, and wait
  * for to receive a [Intent.ACTION_PACKAGE_CHANGED] before allowing the transition to continue. This [Intent] signals
@@ -31,38 +24,38 @@ private const val TOGGLE_TIMEOUT_MILLISECONDS = 11 * 1000L
  * If we don't wait for this signal to be received before switching to the new application, the OS might close that
  * application once it receives that signal since it thinks the app has changed.
  *
- * This [Activity] implementation works around that by waiting for this signal, and then kicking off the launch of the
- * new intended [Activity] once it has been processed.
+ * This [Activity] implementation works around that by waiting for this signal with a [PackageChangedWaiter], and then
+ * kicking off the launch of the new intended [Activity] once it has been processed. When the number of changed
+ * components is known, the package manager may batch them across several broadcasts, so the [Activity] waits until all
+ * of them have been listed in [Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST], or until no more broadcasts are received.
  *
  * This [Activity] should be launched with an [Intent] containing an extra property of type [Intent] keyed by
  * [AppSwitcher.KEY_RESTART_INTENT]. This [Intent] should be the intent that signals how to launch the new application
  * once this [Activity] is finished.
  *
  * Since the [Intent.ACTION_PACKAGE_CHANGED] is sometimes unreliable, this [Activity] also maintains a timer to time
- * out of the process after 11 seconds, which is one second longer than it usually takes to receive the
- * [Intent.ACTION_PACKAGE_CHANGED] Intent.
+ * out of the process. The timeout is derived from the broadcast latencies previously observed on this device for a
+ * similar number of changed components (see [SwitchLatencyHistory]), and is at most 11 seconds, which is one second
+ * longer than it usually takes to receive the [Intent.ACTION_PACKAGE_CHANGED] Intent.
+ *
+ * While waiting, the [AppWarmUpConfiguration] tasks of the new application are run in the background by an
+ * [AppWarmUpRunner], and cancelled when the new application is launched.
  */
 class AppSwitchActivity : FragmentActivity() {
 
-    private val handler = Handler(Looper.getMainLooper())
-
     private lateinit var relaunchIntent: Intent
     private var shouldRelaunch = false
 
-    @Inject lateinit var configuration: Provider<AppSwitchConfiguration>
-
-    private val broadcastReceiver = object : BroadcastReceiver() {
-        override fun onReceive(context: Context?, intent: Intent?) {
-            Log.d(TAG, "STUFFING -- Activity intent received: $intent")
-            shouldRelaunch = true
-        }
+    private val latencyHistory by lazy {
+        SwitchLatencyHistory(applicationContext.getSharedPreferences(
+                DynamicAppManagerPrefs.switchLatencyConfig, Context.MODE_PRIVATE))
     }
+    private var packageChangedWaiter: PackageChangedWaiter? = null
 
-    private val finishRunnable = Runnable {
-        Log.d(TAG, "STUFFING -- timer expired")
-        shouldRelaunch = true
-        finish()
-    }
+    private var warmUpRunner: AppWarmUpRunner? = null
+    private var metrics: SwitchMetricsRecorder? = null
+
+    @Inject lateinit var configuration: Provider<AppSwitchConfiguration>
 
     override fun onCreate(savedInstanceState: Bundle?) {
         AndroidInjection.inject(this)
@@ -70,19 +63,37 @@ class AppSwitchActivity : FragmentActivity() {
         super.onCreate(savedInstanceState)
 
         relaunchIntent = intent.getParcelableExtra(AppSwitcher.KEY_RESTART_INTENT)
+        val changedComponentCount = intent.getIntExtra(AppSwitcher.KEY_CHANGED_COMPONENT_COUNT, -1)
+        val switchStartElapsedRealtime = intent.getLongExtra(AppSwitcher.KEY_SWITCH_START_ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime())
+        metrics = SwitchMetricsRecorder.fromBundle(intent.getBundleExtra(SwitchMetricsRecorder.KEY_SWITCH_METRICS))
+        metrics?.mark(SwitchMetrics.PHASE_SWITCH_ACTIVITY_CREATED)
+
+        // The timeout starts from the beginning of the switch, since starting this process is part of the wait
+        val waiter = PackageChangedWaiter(applicationContext, changedComponentCount, switchStartElapsedRealtime,
+                latencyHistory) { timedOut ->
+            metrics?.apply {
+                mark(SwitchMetrics.PHASE_PACKAGE_CHANGED)
+                this.timedOut = timedOut
+            }
+            // The package manager is done, relaunch right away rather than waiting for the activity to be paused
+            shouldRelaunch = true
+            finish()
+        }
+        packageChangedWaiter = waiter
 
-        Log.d(TAG, "STUFFING -- activity created")
-
-        val intentFilter = IntentFilter()
-        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED)
-        intentFilter.addDataScheme("package");
+        Log.d(TAG, "STUFFING -- activity created, changedComponentCount=$changedComponentCount " +
+                "timeoutMillis=${waiter.timeoutMillis}")
 
-        applicationContext.registerReceiver(broadcastReceiver, intentFilter)
-        handler.postDelayed(finishRunnable, TOGGLE_TIMEOUT_MILLISECONDS)
+        waiter.start()
 
         configuration.get()?.let {
             setContentView(it.appSwitchActivityResId)
-            configuration.get().startAppWarmUp()
+            it.startAppWarmUp()
+
+            if (it is AppWarmUpConfiguration) {
+                warmUpRunner = AppWarmUpRunner(it.warmUpTasks).apply { start() }
+            }
         }
     }
 
@@ -97,13 +108,31 @@ class AppSwitchActivity : FragmentActivity() {
 
         Log.d(TAG, "STUFFING -- activity onDestroy shouldRelaunch=$shouldRelaunch relaunchIntent=$relaunchIntent")
 
-        handler.removeCallbacks(finishRunnable)
-        applicationContext.unregisterReceiver(broadcastReceiver)
+        packageChangedWaiter?.stop()
+
+        finishWarmUp()
 
         if (shouldRelaunch) {
-            AppSwitcher.endIntentToSwitchApp(applicationContext, relaunchIntent)
+            AppSwitcher.endIntentToSwitchApp(applicationContext, relaunchIntent, metrics)
         } else {
             AppSwitcher.abortIntentToSwitchApp()
         }
     }
+
+    /**
+     * Cancels the unfinished warm-up tasks and reports the ones that completed, both to the configuration and to the new
+     * application through the relaunch intent.
+     */
+    private fun finishWarmUp() {
+        val result = warmUpRunner?.cancel() ?: return
+        warmUpRunner = null
+
+        (configuration.get() as? AppWarmUpConfiguration)?.onWarmUpFinished(
+                result.completedTaskNames, result.unfinishedTaskNames)
+
+        if (shouldRelaunch) {
+            relaunchIntent.putStringArrayListExtra(AppWarmUpConfiguration.EXTRA_COMPLETED_WARM_UP_TASKS,
+                    ArrayList(result.completedTaskNames))
+        }
+    }
 }
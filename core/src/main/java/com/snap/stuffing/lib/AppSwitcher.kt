@@ -3,6 +3,8 @@ package com.snap.stuffing.lib
 import android.content.Context
 import android.content.Intent
 import android.content.Intent.FLAG_ACTIVITY_NEW_TASK
+import android.os.SystemClock
+import com.snap.stuffing.api.SwitchMetrics
 
 /**
  * Provides an entry point for invoking the flow to switch applications.
@@ -14,27 +16,50 @@ internal class AppSwitcher {
 
     companion object {
         const val KEY_RESTART_INTENT = "RESTART_INTENTS"
+        const val KEY_CHANGED_COMPONENT_COUNT = "CHANGED_COMPONENT_COUNT"
+        const val KEY_SWITCH_START_ELAPSED_REALTIME = "SWITCH_START_ELAPSED_REALTIME"
 
         /**
          * Invoke from the initial application to start the app switch flow. The calling process will be killed, and
          * a [AppSwitchActivity] will be launched in a new process to manage the transition to the new activity.
+         *
+         * The [changedComponentCount] is the number of components modified by the switch, or -1 if unknown. The
+         * [AppSwitchActivity] waits for [Intent.ACTION_PACKAGE_CHANGED] broadcasts listing that many components, or
+         * until they stop. When no component was modified, no broadcast is sent and [endIntentToSwitchApp] should be
+         * used instead.
+         *
+         * The [metrics] of the switch, if any, are carried over to the [AppSwitchActivity].
          */
-        fun beginIntentToSwitchApp(context: Context, intent: Intent? = null) {
+        fun beginIntentToSwitchApp(context: Context,
+                                   intent: Intent? = null,
+                                   changedComponentCount: Int = -1,
+                                   metrics: SwitchMetricsRecorder? = null) {
             val switcherIntent = Intent(context, AppSwitchActivity::class.java)
 
             switcherIntent.addFlags(FLAG_ACTIVITY_NEW_TASK)
+            switcherIntent.putExtra(KEY_CHANGED_COMPONENT_COUNT, changedComponentCount)
+            switcherIntent.putExtra(KEY_SWITCH_START_ELAPSED_REALTIME, SystemClock.elapsedRealtime())
             intent?.let {
                 switcherIntent.putExtra(KEY_RESTART_INTENT, it)
             }
+            metrics?.let {
+                it.mark(SwitchMetrics.PHASE_PROCESS_EXIT)
+                switcherIntent.putExtra(SwitchMetricsRecorder.KEY_SWITCH_METRICS, it.toBundle())
+            }
 
             context.startActivity(switcherIntent)
             Runtime.getRuntime().exit(0)
         }
 
         /**
-         * Invoked from the [AppSwitchActivity] process to complete the transition to the new Application.
+         * Invoked from the [AppSwitchActivity] process to complete the transition to the new Application. The
+         * [metrics] of the switch, if any, are carried over to the new process.
          */
-        fun endIntentToSwitchApp(context: Context, intent: Intent) {
+        fun endIntentToSwitchApp(context: Context, intent: Intent, metrics: SwitchMetricsRecorder? = null) {
+            metrics?.let {
+                it.mark(SwitchMetrics.PHASE_RELAUNCH)
+                intent.putExtra(SwitchMetricsRecorder.KEY_SWITCH_METRICS, it.toBundle())
+            }
             context.startActivity(intent)
             Runtime.getRuntime().exit(0)
         }
@@ -0,0 +1,92 @@
+package com.snap.stuffing.lib
+
+import android.os.SystemClock
+import android.util.Log
+import com.snap.stuffing.api.AppWarmUpTask
+import java.util.Collections
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val TAG = "AppWarmUpRunner"
+
+/**
+ * The number of threads running warm-up tasks, kept small so that warm-up doesn't compete with the package manager.
+ */
+private const val WARM_UP_THREAD_COUNT = 2
+
+/**
+ * The names of the warm-up tasks that completed, and of those that didn't.
+ */
+internal class AppWarmUpResult(val completedTaskNames: List<String>, val unfinishedTaskNames: List<String>)
+
+/**
+ * Runs [AppWarmUpTask]s on a bounded pool of background threads, in order of decreasing priority, until [cancel] is
+ * called.
+ */
+internal class AppWarmUpRunner(tasks: List<AppWarmUpTask>) {
+
+    // Sorting up front rather than using a priority queue, since the executor hands the first tasks directly to its
+    // threads without queuing them.
+    private val tasks = tasks.sortedByDescending { it.priority }
+    private val completedTaskNames = Collections.synchronizedSet(LinkedHashSet<String>())
+
+    private val executor = ThreadPoolExecutor(WARM_UP_THREAD_COUNT, WARM_UP_THREAD_COUNT, 0L, TimeUnit.MILLISECONDS,
+            LinkedBlockingQueue<Runnable>(), WarmUpThreadFactory())
+
+    private var startElapsedRealtime = 0L
+
+    fun start() {
+        Log.d(TAG, "STUFFING -- Starting ${tasks.size} warm-up tasks")
+
+        startElapsedRealtime = SystemClock.elapsedRealtime()
+        for (task in tasks) {
+            executor.execute { runTask(task) }
+        }
+    }
+
+    /**
+     * Cancels the unfinished tasks, interrupting those that are running, and returns which tasks completed.
+     */
+    fun cancel(): AppWarmUpResult {
+        executor.shutdownNow()
+
+        val completed = synchronized(completedTaskNames) { completedTaskNames.toList() }
+        val unfinished = tasks.map { it.name }.filter { !completed.contains(it) }
+
+        Log.d(TAG, "STUFFING -- Warm-up cancelled, completed=$completed unfinished=$unfinished")
+        return AppWarmUpResult(completed, unfinished)
+    }
+
+    private fun runTask(task: AppWarmUpTask) {
+        val elapsedMillis = SystemClock.elapsedRealtime() - startElapsedRealtime
+        if (task.deadlineMillis > 0 && elapsedMillis > task.deadlineMillis) {
+            Log.d(TAG, "STUFFING -- Skipping warm-up task ${task.name}, deadline of ${task.deadlineMillis}ms missed")
+            return
+        }
+
+        try {
+            task.run()
+            if (!Thread.currentThread().isInterrupted) {
+                completedTaskNames.add(task.name)
+            }
+        } catch (e: InterruptedException) {
+            Log.d(TAG, "STUFFING -- Warm-up task ${task.name} interrupted")
+        } catch (e: Exception) {
+            Log.e(TAG, "STUFFING -- Warm-up task ${task.name} failed", e)
+        }
+    }
+
+    private class WarmUpThreadFactory : ThreadFactory {
+        private val threadCount = AtomicInteger()
+
+        override fun newThread(runnable: Runnable): Thread {
+            return Thread(runnable, "stuffing-warm-up-${threadCount.incrementAndGet()}").apply {
+                isDaemon = true
+                priority = Thread.MIN_PRIORITY
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.snap.stuffing.lib
+
+/**
+ * A switch to [target] whose non-critical components were not applied yet. [previousTarget] is the target that was
+ * fully applied before that switch, or null if it is unknown.
+ */
+internal data class DeferredComponents(val target: String, val previousTarget: String?)
+
+/**
+ * The components last applied by the [AppComponentModifier], as recorded in the [DynamicAppState].
+ */
+internal data class AppliedComponents(
+        /**
+         * The target (an app family, or [RESET_TARGET]) that was last fully applied, or null if a switch deferred some
+         * of its components.
+         */
+        val target: String?,
+        /**
+         * The switch whose non-critical components were not applied yet, if any.
+         */
+        val deferred: DeferredComponents?,
+        /**
+         * The app version code the components were applied for.
+         */
+        val versionCode: Int,
+        /**
+         * The [SwitchPlanner.fingerprint] the components were applied for.
+         */
+        val indexFingerprint: Int) {
+
+    fun matches(appVersionCode: Int, indexFingerprint: Int): Boolean {
+        return versionCode == appVersionCode && this.indexFingerprint == indexFingerprint
+    }
+}
+
+/**
+ * The main activity class name resolved for each lower-cased app family, as cached in the [DynamicAppState]. An empty
+ * class name means the app family has no main activity.
+ */
+internal data class MainActivities(
+        /**
+         * The app version code the main activities were resolved for.
+         */
+        val versionCode: Int,
+        /**
+         * The [SwitchPlanner.fingerprint] the main activities were resolved for.
+         */
+        val indexFingerprint: Int,
+        val classNames: Map<String, String>) {
+
+    fun matches(appVersionCode: Int, indexFingerprint: Int): Boolean {
+        return versionCode == appVersionCode && this.indexFingerprint == indexFingerprint
+    }
+}
+
+/**
+ * A persisted record of the component states last applied by the [AppComponentModifier].
+ *
+ * The snapshot only stores which target (an app family, or [RESET_TARGET]) was last fully applied, along with the app
+ * version code and [ComponentTable.fingerprint] it was applied for. Since the state of every component is a pure
+ * function of the target, this is enough to compute the components that differ between two targets without reading
+ * their current states from the PackageManager.
+ *
+ * The snapshot is stored as the [AppliedComponents] of the [DynamicAppState], so it can be invalidated and written back
+ * by the same [DynamicAppStateStore] writes that record the start and the end of a switch. It's invalidated before any
+ * component is modified and only written back once all of them were, so a switch interrupted midway leaves no snapshot
+ * and the next switch falls back to a full scan.
+ *
+ * When the non-critical components of a switch are deferred, the snapshot records the pending [DeferredComponents]
+ * instead of the applied target, until the deferred components are applied.
+ *
+ * The snapshot also caches the main activity resolved for each app family as the [MainActivities] of the
+ * [DynamicAppState], which only depend on the component index and are ignored after an app version code or component
+ * index change. A switch records the main activity of its app family along with the rest of the state, see
+ * [withMainActivity].
+ */
+internal class AppliedComponentSnapshot(private val stateStore: DynamicAppStateStore) {
+
+    /**
+     * Returns the target that was last applied, or null if there is no snapshot or it was taken for a different app
+     * version or component index.
+     */
+    fun read(appVersionCode: Int, indexFingerprint: Int): String? {
+        val applied = stateStore.read().appliedComponents ?: return null
+        return if (applied.matches(appVersionCode, indexFingerprint)) applied.target else null
+    }
+
+    /**
+     * Returns the cached main activity class name for the [appFamily], an empty string if the app family has no main
+     * activity, or null if nothing was cached for this app version and component index.
+     */
+    fun readMainActivity(appFamily: String, appVersionCode: Int, indexFingerprint: Int): String? {
+        val mainActivities = stateStore.read().mainActivities ?: return null
+        return if (mainActivities.matches(appVersionCode, indexFingerprint)) {
+            mainActivities.classNames[appFamily]
+        } else {
+            null
+        }
+    }
+
+    /**
+     * Returns the cached main activities along with the [className] of the [appFamily], dropping those cached for a
+     * different app version or component index.
+     */
+    fun withMainActivity(appFamily: String,
+                         className: String,
+                         appVersionCode: Int,
+                         indexFingerprint: Int): MainActivities {
+        val mainActivities = stateStore.read().mainActivities
+                ?.takeIf { it.matches(appVersionCode, indexFingerprint) }
+        return MainActivities(appVersionCode, indexFingerprint,
+                (mainActivities?.classNames ?: emptyMap()) + (appFamily to className))
+    }
+
+    fun writeMainActivity(appFamily: String, className: String, appVersionCode: Int, indexFingerprint: Int) {
+        val mainActivities = withMainActivity(appFamily, className, appVersionCode, indexFingerprint)
+        stateStore.update { it.copy(mainActivities = mainActivities) }
+    }
+
+    /**
+     * Drops the snapshot, unless it was already dropped, e.g. by the write recording the start of a switch.
+     */
+    fun invalidate() {
+        if (stateStore.read().appliedComponents != null) {
+            stateStore.update { it.copy(appliedComponents = null) }
+        }
+    }
+
+    fun write(applied: AppliedComponents) {
+        stateStore.update { it.copy(appliedComponents = applied) }
+    }
+
+    fun hasDeferredComponents(): Boolean {
+        return stateStore.read().appliedComponents?.deferred != null
+    }
+
+    /**
+     * Returns the pending deferred components, or null if there are none or they were recorded for a different app
+     * version or component index.
+     */
+    fun readDeferred(appVersionCode: Int, indexFingerprint: Int): DeferredComponents? {
+        val applied = stateStore.read().appliedComponents ?: return null
+        return if (applied.matches(appVersionCode, indexFingerprint)) applied.deferred else null
+    }
+}
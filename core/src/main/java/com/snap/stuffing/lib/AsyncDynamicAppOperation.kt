@@ -0,0 +1,69 @@
+package com.snap.stuffing.lib
+
+import com.snap.stuffing.api.DynamicAppOperation
+import com.snap.stuffing.api.DynamicAppOperationListener
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val STATE_PENDING = 0
+private const val STATE_RUNNING = 1
+private const val STATE_DONE = 2
+private const val STATE_CANCELLED = 3
+
+/**
+ * A [DynamicAppOperation] run on the background executor of a [BaseDynamicAppManager], which can only be cancelled
+ * while it is pending.
+ */
+internal class AsyncDynamicAppOperation(private val listener: DynamicAppOperationListener?) : DynamicAppOperation {
+
+    private val state = AtomicInteger(STATE_PENDING)
+
+    override val isDone: Boolean
+        get() = state.get() >= STATE_DONE
+
+    override val isCancelled: Boolean
+        get() = state.get() == STATE_CANCELLED
+
+    override fun cancel(): Boolean {
+        return state.compareAndSet(STATE_PENDING, STATE_CANCELLED)
+    }
+
+    /**
+     * Cancels the operation if it didn't start yet, and notifies the listener of the [error].
+     *
+     * @return True if the operation was cancelled, false if it already started or finished.
+     */
+    fun abort(error: Throwable): Boolean {
+        if (!cancel()) {
+            return false
+        }
+
+        listener?.onError(error)
+        return true
+    }
+
+    /**
+     * Marks the operation as running. Returns false if it was cancelled, in which case it shouldn't run.
+     */
+    fun start(): Boolean {
+        return state.compareAndSet(STATE_PENDING, STATE_RUNNING)
+    }
+
+    fun progress(appliedComponentCount: Int, totalComponentCount: Int) {
+        listener?.onProgress(appliedComponentCount, totalComponentCount)
+    }
+
+    /**
+     * Marks the operation as completed and notifies the listener, unless that was already done.
+     */
+    fun complete() {
+        if (state.compareAndSet(STATE_RUNNING, STATE_DONE)) {
+            listener?.onComplete()
+        }
+    }
+
+    fun fail(error: Throwable) {
+        if (state.compareAndSet(STATE_RUNNING, STATE_DONE)) {
+            listener?.onError(error)
+        }
+    }
+}
@@ -1,29 +1,147 @@
 package com.snap.stuffing.lib
 
 import android.content.Context
-import android.content.SharedPreferences
+import android.os.Build
+import android.util.Log
 import com.snap.stuffing.api.DynamicAppManager
+import com.snap.stuffing.api.DynamicAppOperation
+import com.snap.stuffing.api.DynamicAppOperationListener
+import java.io.File
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 /**
  * The maximum number of failed toggle attempt to retry.
  */
 internal const val MAX_FAILED_ATTEMPT_COUNT = 3
 
+/**
+ * The number of times an interrupted switch is resumed from its [SwitchCheckpoint]. Once the interrupted attempt and
+ * all of its resumed attempts failed, the default app family is restored instead.
+ */
+internal const val MAX_RESUMED_ATTEMPT_COUNT = 2
+
+/**
+ * A cheap fingerprint of an installed APK from the modification time and size of its file, which change whenever the
+ * app is updated. Returns 0 if the file doesn't exist.
+ */
+internal fun computeApkFingerprint(apkFile: File): Long {
+    return 31 * apkFile.lastModified() + apkFile.length()
+}
+
 /**
  * Base for all dynamic app managers
+ *
+ * The [buildVersionCode] is the versionCode of the app known at build time, or 0 if unknown. Otherwise, the version code
+ * is only queried from the PackageManager when the APK changed since it was last recorded in the [stateStore].
+ *
+ * Component states are read and written through the [componentStateStore], or the PackageManager if null.
  */
-abstract class BaseDynamicAppManager(private val appContext: Context, private val tag: String): DynamicAppManager {
+abstract class BaseDynamicAppManager(
+        private val appContext: Context,
+        private val tag: String,
+        launcherAliasRouting: Boolean = false,
+        private val buildVersionCode: Int = 0,
+        componentStateStore: ComponentStateStore? = null): DynamicAppManager {
 
-    internal val appComponentModifier = AppComponentModifier(appContext)
+    internal val appComponentModifier = AppComponentModifier(appContext,
+            launcherAliasRouting,
+            componentStateStore ?: PackageManagerComponentStateStore(appContext),
+            stateStore = { stateStore }) { appVersionCode }
 
-    internal val preferences: SharedPreferences by lazy {
-        appContext.getSharedPreferences(DynamicAppManagerPrefs.dynamicAppConfig, Context.MODE_PRIVATE)
+    internal val stateStore: DynamicAppStateStore by lazy {
+        // The state describes the component states of this device, so it shouldn't be restored from a backup.
+        val directory = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            appContext.noBackupFilesDir
+        } else {
+            appContext.filesDir
+        }
+
+        DynamicAppStateStore(File(directory, DynamicAppManagerPrefs.stateStoreFile)).apply {
+            if (!exists) {
+                migrateFrom(appContext.getSharedPreferences(
+                        DynamicAppManagerPrefs.dynamicAppConfig, Context.MODE_PRIVATE))
+            }
+        }
+    }
+
+    /**
+     * See [computeApkFingerprint]. Only requires a stat of the APK file, without any IPC.
+     */
+    internal val apkFingerprint: Long by lazy {
+        val sourceDir = appContext.applicationInfo?.sourceDir
+        if (sourceDir == null) 0L else computeApkFingerprint(File(sourceDir))
     }
 
     internal val appVersionCode: Int by lazy {
-        appContext.packageManager.getPackageInfo(appContext.packageName, 0).versionCode
+        val state = stateStore.read()
+        when {
+            buildVersionCode > 0 -> buildVersionCode
+            apkFingerprint != 0L && apkFingerprint == state.apkFingerprint -> state.previousVersion
+            else -> appContext.packageManager.getPackageInfo(appContext.packageName, 0).versionCode
+        }
     }
 
     internal var failedToggleAttemptCount = 0
 
-}
\ No newline at end of file
+    /**
+     * A single background thread owned by the library, used to apply component changes off the calling thread.
+     */
+    internal val backgroundExecutor: ExecutorService by lazy {
+        Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "stuffing-$tag").apply { isDaemon = true }
+        }
+    }
+
+    /**
+     * Held by the operations of this manager that modify its state, see [runSerially].
+     */
+    private val transitionLock = ReentrantLock()
+
+    /**
+     * Runs the [block] on the calling thread while holding the [transitionLock], so that it never interleaves with the
+     * other operations of this manager. Nested calls from the [block] run in place.
+     */
+    internal fun <T> runSerially(block: () -> T): T {
+        return transitionLock.withLock(block)
+    }
+
+    override fun initializeAsync(listener: DynamicAppOperationListener?): DynamicAppOperation {
+        return runAsync(listener) { initialize(it::progress) }
+    }
+
+    /**
+     * Initializes this manager, reporting the progress of any component change to [progress].
+     */
+    internal abstract fun initialize(progress: ProgressCallback?)
+
+    override fun initialize() {
+        initialize(null)
+    }
+
+    /**
+     * Runs the [block] on the [backgroundExecutor], unless the returned operation is cancelled before it starts. The
+     * operation completes when the [block] returns, unless the [block] completes it earlier.
+     */
+    internal fun runAsync(listener: DynamicAppOperationListener?,
+                          block: (AsyncDynamicAppOperation) -> Unit): DynamicAppOperation {
+        val operation = AsyncDynamicAppOperation(listener)
+        backgroundExecutor.execute {
+            if (!operation.start()) {
+                Log.d(tag, "STUFFING -- Operation cancelled before starting")
+                return@execute
+            }
+
+            try {
+                block(operation)
+                operation.complete()
+            } catch (e: Exception) {
+                Log.e(tag, "STUFFING -- Operation failed", e)
+                operation.fail(e)
+            }
+        }
+        return operation
+    }
+}
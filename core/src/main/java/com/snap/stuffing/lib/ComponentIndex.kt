@@ -0,0 +1,98 @@
+package com.snap.stuffing.lib
+
+import android.content.Context
+import android.content.pm.ComponentInfo
+import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
+import android.util.Log
+import java.io.BufferedReader
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStreamReader
+
+private const val TAG = "ComponentIndex"
+
+/**
+ * Path of the index asset generated by the `component-index.gradle` build script.
+ */
+internal const val COMPONENT_INDEX_ASSET_PATH = "stuffing/component_index"
+
+/**
+ * Loads the [ComponentTable] listing all the manifest components of the application and the app families they belong
+ * to.
+ *
+ * The table is normally read from an asset generated at build time from the merged manifest, which avoids pulling the
+ * whole manifest and its meta-data Bundles from the [PackageManager] over binder. When the asset is missing (e.g. the
+ * build script was not applied), the table is built from a single [PackageManager.getPackageInfo] call instead.
+ */
+internal object ComponentIndex {
+
+    /**
+     * Loads the table from the generated asset, falling back to querying the [PackageManager].
+     */
+    fun load(context: Context): ComponentTable {
+        return loadFromAssets(context) ?: loadFromPackageManager(context)
+    }
+
+    /**
+     * Loads the table from the generated asset. Returns null if the asset is missing or can't be read.
+     */
+    fun loadFromAssets(context: Context): ComponentTable? {
+        return try {
+            context.assets.open(COMPONENT_INDEX_ASSET_PATH).use { stream ->
+                ComponentTable.parse(BufferedReader(InputStreamReader(stream, Charsets.UTF_8)))
+            }
+        } catch (e: FileNotFoundException) {
+            Log.d(TAG, "STUFFING -- No component index asset, falling back to PackageManager")
+            null
+        } catch (e: IOException) {
+            Log.e(TAG, "STUFFING -- Couldn't read component index asset", e)
+            null
+        } catch (e: IllegalArgumentException) {
+            Log.e(TAG, "STUFFING -- Couldn't parse component index asset", e)
+            null
+        }
+    }
+
+    /**
+     * Builds the table by querying all the components and their meta-data from the [PackageManager].
+     */
+    fun loadFromPackageManager(context: Context): ComponentTable {
+        val queryDisableFlag = if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
+            PackageManager.MATCH_DISABLED_COMPONENTS
+        } else {
+            PackageManager.GET_DISABLED_COMPONENTS
+        }
+
+        val packageInfo: PackageInfo
+        try {
+            packageInfo = context.packageManager.getPackageInfo(context.packageName,
+                    PackageManager.GET_RECEIVERS or
+                            PackageManager.GET_SERVICES or
+                            PackageManager.GET_PROVIDERS or
+                            PackageManager.GET_META_DATA or
+                            PackageManager.GET_ACTIVITIES or
+                            queryDisableFlag)
+        } catch (e: PackageManager.NameNotFoundException) {
+            Log.e(TAG, "Couldn't query app components", e)
+            throw RuntimeException(e)
+        }
+
+        val builder = ComponentTable.Builder()
+        packageInfo.services?.forEach { builder.add(ComponentType.SERVICE, it) }
+        packageInfo.receivers?.forEach { builder.add(ComponentType.RECEIVER, it) }
+        packageInfo.providers?.forEach { builder.add(ComponentType.PROVIDER, it) }
+        packageInfo.activities?.forEach { builder.add(ComponentType.ACTIVITY, it) }
+        return builder.build()
+    }
+
+    private fun ComponentTable.Builder.add(type: ComponentType, componentInfo: ComponentInfo) {
+        add(type,
+                componentInfo.name,
+                componentInfo.metaData?.getString("appFamilies"),
+                componentInfo.metaData?.getString("mainForAppFamilies"),
+                componentInfo.metaData?.getString("launcherForAppFamilies"),
+                // Intent filters aren't available from the PackageManager, so boot receivers can't be detected here.
+                type == ComponentType.PROVIDER || componentInfo.metaData?.getString("switchPriority") == "critical")
+    }
+}
@@ -0,0 +1,136 @@
+package com.snap.stuffing.lib
+
+import android.content.ComponentName
+import android.content.Context
+import android.content.pm.PackageManager
+import android.os.Build
+import android.util.Log
+import java.lang.reflect.Constructor
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+
+private const val TAG = "ComponentStateStore"
+
+/**
+ * Reads and writes the enabled state of the manifest components of the application, identified by their class names.
+ * States use the values of the [PackageManager].COMPONENT_ENABLED_STATE_* constants.
+ *
+ * The library uses the [PackageManager] by default. Other implementations, e.g. one keeping the states in memory, can be
+ * provided to the [MultiDynamicAppManager] to run switches without a device.
+ */
+interface ComponentStateStore {
+
+    /**
+     * True if [setComponentEnabledSettings] writes up to [BATCH_WRITE_SIZE] components in a single call.
+     */
+    val supportsBatchWrites: Boolean
+
+    fun getComponentEnabledSetting(className: String): Int
+
+    /**
+     * Writes the [states] of the components named by [classNames], in order, without killing the app.
+     *
+     * @param progress Invoked with the number of components written so far and the total number of components. A switch
+     * is only checkpointed when the written count reaches a multiple of [SWITCH_CHECKPOINT_INTERVAL], so it must be
+     * reported at least that often.
+     */
+    fun setComponentEnabledSettings(classNames: List<String>,
+                                    states: IntArray,
+                                    progress: ((writtenCount: Int, totalCount: Int) -> Unit)?)
+}
+
+/**
+ * The first API level with [PackageManager].setComponentEnabledSettings, Android 13.
+ */
+private const val BATCH_WRITES_API_LEVEL = 33
+
+/**
+ * The number of components written by each batch write, so that the progress of a switch is reported, and the switch
+ * checkpointed, every [SWITCH_CHECKPOINT_INTERVAL] components on API 33+ too.
+ */
+internal const val BATCH_WRITE_SIZE = SWITCH_CHECKPOINT_INTERVAL
+
+/**
+ * The [ComponentStateStore] of the [PackageManager], where every call is a binder call to the system server. The
+ * states are written with one PackageManager.setComponentEnabledSettings call per [BATCH_WRITE_SIZE] components on
+ * API 33+, and one call per component on older API levels.
+ *
+ * The library compiles against an older SDK, so the batch API is looked up by reflection, and writes fall back to one
+ * call per component if it can't be found.
+ */
+internal class PackageManagerComponentStateStore(private val context: Context) : ComponentStateStore {
+
+    private val packageManager: PackageManager by lazy { context.packageManager }
+
+    private val batchWriter: BatchWriter? by lazy {
+        if (Build.VERSION.SDK_INT >= BATCH_WRITES_API_LEVEL) BatchWriter.create() else null
+    }
+
+    override val supportsBatchWrites: Boolean
+        get() = batchWriter != null
+
+    override fun getComponentEnabledSetting(className: String): Int {
+        return packageManager.getComponentEnabledSetting(componentName(className))
+    }
+
+    override fun setComponentEnabledSettings(classNames: List<String>,
+                                             states: IntArray,
+                                             progress: ((writtenCount: Int, totalCount: Int) -> Unit)?) {
+        if (classNames.isEmpty()) return
+
+        val batchWriter = batchWriter
+        if (batchWriter != null) {
+            for (start in classNames.indices step BATCH_WRITE_SIZE) {
+                val end = Math.min(start + BATCH_WRITE_SIZE, classNames.size)
+                batchWriter.write(packageManager,
+                        (start until end).map { componentName(classNames[it]) },
+                        states.copyOfRange(start, end))
+                progress?.invoke(end, classNames.size)
+            }
+        } else {
+            for (i in classNames.indices) {
+                packageManager.setComponentEnabledSetting(
+                        componentName(classNames[i]),
+                        states[i],
+                        PackageManager.DONT_KILL_APP)
+                progress?.invoke(i + 1, classNames.size)
+            }
+        }
+    }
+
+    private fun componentName(className: String): ComponentName {
+        return ComponentName(context.packageName, className)
+    }
+
+    /**
+     * Calls PackageManager.setComponentEnabledSettings(List<PackageManager.ComponentEnabledSetting>) by reflection.
+     */
+    private class BatchWriter(private val settingConstructor: Constructor<*>, private val writeMethod: Method) {
+
+        fun write(packageManager: PackageManager, componentNames: List<ComponentName>, states: IntArray) {
+            val settings = componentNames.indices.map {
+                settingConstructor.newInstance(componentNames[it], states[it], PackageManager.DONT_KILL_APP)
+            }
+            try {
+                writeMethod.invoke(packageManager, settings)
+            } catch (e: InvocationTargetException) {
+                throw e.targetException
+            }
+        }
+
+        companion object {
+
+            fun create(): BatchWriter? {
+                return try {
+                    val settingClass = Class.forName("android.content.pm.PackageManager\$ComponentEnabledSetting")
+                    BatchWriter(
+                            settingClass.getConstructor(ComponentName::class.java, Int::class.java, Int::class.java),
+                            PackageManager::class.java.getMethod("setComponentEnabledSettings", List::class.java))
+                } catch (e: ReflectiveOperationException) {
+                    Log.e(TAG, "STUFFING -- Batch component writes unavailable", e)
+                    null
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.snap.stuffing.lib
+
+import java.io.BufferedReader
+import java.util.Arrays
+
+/**
+ * Header of the component index asset. Bumped whenever the line format changes.
+ */
+internal const val COMPONENT_INDEX_HEADER = "# stuffing-component-index 4"
+
+/**
+ * Directive of the component index asset naming the app family that the manifest 'android:enabled' defaults were
+ * aligned with at build time.
+ */
+internal const val ALIGNED_APP_FAMILY_DIRECTIVE = "# aligned-app-family"
+
+/**
+ * The id of an app family that no component belongs to, which matches no family bitmask.
+ */
+internal const val NO_APP_FAMILY_ID = -1
+
+/**
+ * The type of a manifest component.
+ */
+enum class ComponentType(val tag: String) {
+    ACTIVITY("activity"),
+    SERVICE("service"),
+    RECEIVER("receiver"),
+    PROVIDER("provider");
+
+    companion object {
+        fun fromTag(tag: String): ComponentType? = values().firstOrNull { it.tag == tag }
+    }
+}
+
+/**
+ * Interns app family names to small integer ids, such that a set of app families can be represented as a bitmask.
+ * Family names are trimmed and lower-cased before being interned.
+ */
+internal class AppFamilyRegistry {
+    private val ids = HashMap<String, Int>()
+
+    val size: Int
+        get() = ids.size
+
+    /**
+     * Returns the id of the [family], assigning a new one if it wasn't seen before.
+     */
+    fun intern(family: String): Int {
+        val key = family.trim().toLowerCase()
+        return ids[key] ?: run {
+            val id = ids.size
+            ids[key] = id
+            id
+        }
+    }
+
+    /**
+     * Returns the id of the [family], or [NO_APP_FAMILY_ID] if no component belongs to it.
+     */
+    fun idOf(family: String): Int {
+        return ids[family.trim().toLowerCase()] ?: NO_APP_FAMILY_ID
+    }
+}
+
+/**
+ * All the manifest components of the application, stored as parallel primitive arrays indexed by component position.
+ *
+ * The app families of each component are stored as a bitmask of ids from [families], so classifying a component
+ * against an app family is a single AND without any allocation. Each bitmask spans [maskWords] consecutive longs, a
+ * single one unless there are more than 64 app families. A component mask of 0 means that the component was not tagged
+ * with any app family.
+ *
+ * [launcherForFamilyMasks] holds the app families for which a component, usually an activity-alias, is the launcher
+ * entry point when launcher alias routing is enabled.
+ *
+ * [criticalFlags] marks launch-critical components, which are switched synchronously while the other components can be
+ * switched later in the background. Main activities and launcher aliases are always critical.
+ *
+ * [alignedFlags] marks components whose manifest 'android:enabled' default was aligned at build time with the
+ * [alignedAppFamily], such that their default state is already their state for that app family.
+ */
+internal class ComponentTable(
+        val families: AppFamilyRegistry,
+        val names: Array<String>,
+        val types: Array<ComponentType>,
+        val maskWords: Int,
+        val familyMasks: LongArray,
+        val mainForFamilyMasks: LongArray,
+        val launcherForFamilyMasks: LongArray,
+        val criticalFlags: BooleanArray,
+        val alignedFlags: BooleanArray,
+        val alignedAppFamily: String?) {
+
+    val size: Int
+        get() = names.size
+
+    fun isCritical(position: Int): Boolean {
+        return criticalFlags[position] ||
+                hasAnyFamily(mainForFamilyMasks, position) ||
+                hasAnyFamily(launcherForFamilyMasks, position)
+    }
+
+    /**
+     * Returns true if the bitmask of the component at [position] in [masks] has the app family of id [familyId].
+     */
+    fun hasFamily(masks: LongArray, position: Int, familyId: Int): Boolean {
+        return familyId >= 0 && (masks[position * maskWords + (familyId ushr 6)] and (1L shl familyId)) != 0L
+    }
+
+    /**
+     * Returns true if the bitmask of the component at [position] in [masks] has any app family.
+     */
+    fun hasAnyFamily(masks: LongArray, position: Int): Boolean {
+        val start = position * maskWords
+        for (i in start until start + maskWords) {
+            if (masks[i] != 0L) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * A hash of all the components and their app families, used to detect changes without a version code change.
+     */
+    val fingerprint: Int by lazy {
+        var result = Arrays.hashCode(names)
+        result = 31 * result + Arrays.hashCode(types)
+        result = 31 * result + Arrays.hashCode(familyMasks)
+        result = 31 * result + Arrays.hashCode(mainForFamilyMasks)
+        result = 31 * result + Arrays.hashCode(launcherForFamilyMasks)
+        result = 31 * result + Arrays.hashCode(criticalFlags)
+        result = 31 * result + Arrays.hashCode(alignedFlags)
+        result = 31 * result + (alignedAppFamily?.hashCode() ?: 0)
+        result
+    }
+
+    /**
+     * Returns the position of the last activity that is the main activity for the app family of id [familyId], or -1 if
+     * none.
+     */
+    fun findMainActivity(familyId: Int): Int {
+        if (familyId < 0) return -1
+
+        for (i in size - 1 downTo 0) {
+            if (types[i] == ComponentType.ACTIVITY && hasFamily(mainForFamilyMasks, i, familyId)) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    /**
+     * Returns true if any component is a launcher entry point for the app family of id [familyId].
+     */
+    fun hasLauncherAlias(familyId: Int): Boolean {
+        if (familyId < 0) return false
+
+        for (i in 0 until size) {
+            if (hasFamily(launcherForFamilyMasks, i, familyId)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    class Builder {
+        private val families = AppFamilyRegistry()
+        private val names = ArrayList<String>()
+        private val types = ArrayList<ComponentType>()
+        private var maskWords = 1
+        // The family, mainForFamily and launcherForFamily masks of the components
+        private val masks = Array(3) { LongArray(16) }
+        private var criticalFlags = BooleanArray(16)
+        private var alignedFlags = BooleanArray(16)
+        private var alignedAppFamily: String? = null
+
+        /**
+         * Sets the app family the manifest defaults of the aligned components were aligned with.
+         */
+        fun alignedAppFamily(appFamily: String?): Builder {
+            alignedAppFamily = appFamily?.trim()?.toLowerCase()
+            return this
+        }
+
+        /**
+         * Adds a component with the raw comma-separated 'appFamilies', 'mainForAppFamilies' and
+         * 'launcherForAppFamilies' meta-data values.
+         */
+        fun add(type: ComponentType,
+                name: String,
+                appFamilies: String?,
+                mainForAppFamilies: String?,
+                launcherForAppFamilies: String?,
+                critical: Boolean,
+                aligned: Boolean = false): Builder {
+            val position = names.size
+            if (position == criticalFlags.size) {
+                for (i in masks.indices) {
+                    masks[i] = masks[i].copyOf(position * 2 * maskWords)
+                }
+                criticalFlags = criticalFlags.copyOf(position * 2)
+                alignedFlags = alignedFlags.copyOf(position * 2)
+            }
+
+            names.add(name)
+            types.add(type)
+            addFamilies(0, position, appFamilies)
+            addFamilies(1, position, mainForAppFamilies)
+            addFamilies(2, position, launcherForAppFamilies)
+            criticalFlags[position] = critical
+            alignedFlags[position] = aligned
+            return this
+        }
+
+        /**
+         * Sets the bits of the comma-separated app families [value] in the bitmask of the component at [position] in
+         * the masks of index [maskIndex], interning each of them.
+         */
+        private fun addFamilies(maskIndex: Int, position: Int, value: String?) {
+            if (value.isNullOrEmpty()) return
+
+            for (family in value.split(',')) {
+                if (family.isBlank()) continue
+                val id = families.intern(family)
+                if (id ushr 6 == maskWords) {
+                    widenMasks()
+                }
+                val word = position * maskWords + (id ushr 6)
+                masks[maskIndex][word] = masks[maskIndex][word] or (1L shl id)
+            }
+        }
+
+        /**
+         * Adds a long to the bitmask of every component, for 64 more app families.
+         */
+        private fun widenMasks() {
+            val newMaskWords = maskWords + 1
+            for (i in masks.indices) {
+                val widened = LongArray(criticalFlags.size * newMaskWords)
+                for (position in 0 until criticalFlags.size) {
+                    System.arraycopy(masks[i], position * maskWords, widened, position * newMaskWords, maskWords)
+                }
+                masks[i] = widened
+            }
+            maskWords = newMaskWords
+        }
+
+        fun build(): ComponentTable {
+            return ComponentTable(
+                    families,
+                    names.toTypedArray(),
+                    types.toTypedArray(),
+                    maskWords,
+                    masks[0].copyOf(names.size * maskWords),
+                    masks[1].copyOf(names.size * maskWords),
+                    masks[2].copyOf(names.size * maskWords),
+                    criticalFlags.copyOf(names.size),
+                    alignedFlags.copyOf(names.size),
+                    alignedAppFamily)
+        }
+    }
+
+    companion object {
+
+        /**
+         * Parses the component index asset format: a [COMPONENT_INDEX_HEADER] line, an optional
+         * [ALIGNED_APP_FAMILY_DIRECTIVE] line, then one tab-separated line per component with the component type,
+         * class name, appFamilies, mainForAppFamilies and launcherForAppFamilies values, a "critical" flag and an
+         * "aligned" flag.
+         *
+         * @throws IllegalArgumentException If the content is not in the expected format.
+         */
+        fun parse(reader: BufferedReader): ComponentTable {
+            val header = reader.readLine()
+            if (header != COMPONENT_INDEX_HEADER) {
+                throw IllegalArgumentException("Unsupported component index header: $header")
+            }
+
+            val builder = Builder()
+            while (true) {
+                val line = reader.readLine() ?: break
+                if (line.isEmpty()) continue
+
+                val fields = line.split('\t')
+                if (fields[0] == ALIGNED_APP_FAMILY_DIRECTIVE && fields.size == 2) {
+                    builder.alignedAppFamily(fields[1])
+                    continue
+                }
+
+                val type = ComponentType.fromTag(fields[0])
+                if (type == null || fields.size < 7) {
+                    throw IllegalArgumentException("Malformed component index line: $line")
+                }
+                builder.add(type, fields[1], fields[2], fields[3], fields[4], fields[5] == "critical",
+                        fields[6] == "aligned")
+            }
+            return builder.build()
+        }
+    }
+}
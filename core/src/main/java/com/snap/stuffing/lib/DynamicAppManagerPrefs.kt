@@ -12,4 +12,13 @@ internal object DynamicAppManagerPrefs {
     val previousAppFamilyKey = "previousAppFamily"
     val previousVersionKey = "previousAppVersion"
     val failedToggleAttemptCountKey = "failedToggleAttemptCount"
+
+    /**
+     * The file of the [DynamicAppStateStore], which replaced the [dynamicAppConfig] preferences.
+     */
+    val stateStoreFile = "dynamicAppState"
+
+    val switchLatencyConfig = "dynamicAppSwitchLatency"
+    val latencyBucketKeyPrefix = "latency."
+    val latencyTimeoutCountKeyPrefix = "latencyTimeouts."
 }
\ No newline at end of file
@@ -0,0 +1,405 @@
+package com.snap.stuffing.lib
+
+import android.content.SharedPreferences
+import android.util.Log
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+private const val TAG = "DynamicAppStateStore"
+
+/**
+ * Marks the start of a slot, "STUF".
+ */
+private const val SLOT_MAGIC = 0x53545546
+
+/**
+ * Bumped whenever the payload format changes. Slots are always written in this format.
+ *
+ * Version 1: Initial format.
+ * Version 2: Add the APK fingerprint.
+ * Version 3: Add the switch checkpoint.
+ * Version 4: Add the applied components.
+ * Version 5: Add the main activities.
+ */
+private const val FORMAT_VERSION = 5
+
+/**
+ * The oldest format that can still be read. Slots in other formats are ignored.
+ */
+private const val MIN_FORMAT_VERSION = 1
+
+/**
+ * The size of each of the two slots of the file. App family names are short, so this leaves plenty of room, except for
+ * the [MainActivities] of many app families, which are dropped from the file when they don't fit.
+ */
+private const val SLOT_SIZE = 1024
+
+/**
+ * Magic, format version, sequence number and payload length.
+ */
+private const val SLOT_HEADER_SIZE = 4 + 4 + 8 + 4
+
+private const val SLOT_CHECKSUM_SIZE = 4
+
+/**
+ * The persisted state of a dynamic app manager. See [DynamicAppManagerPrefs] for the meaning of each field.
+ */
+internal data class DynamicAppState(
+        val systemVersion: Int = 0,
+        val appFamilyChangeSignal: Boolean = false,
+        val appFamily: String? = null,
+        val expectedAppFamily: String? = null,
+        val previousAppFamily: String? = null,
+        val previousVersion: Int = 0,
+        val failedToggleAttemptCount: Int = 0,
+        /**
+         * The [computeApkFingerprint] of the APK whose version code is [previousVersion], or 0 if unknown.
+         */
+        val apkFingerprint: Long = 0L,
+        /**
+         * The progress of the switch in flight, or null if no switch was interrupted since the last completed one.
+         */
+        val switchCheckpoint: SwitchCheckpoint? = null,
+        /**
+         * The snapshot of the components last applied, or null if unknown, see [AppliedComponentSnapshot].
+         */
+        val appliedComponents: AppliedComponents? = null,
+        /**
+         * The main activity cached for each app family, or null if none, see [AppliedComponentSnapshot].
+         */
+        val mainActivities: MainActivities? = null)
+
+/**
+ * A compact binary store for the [DynamicAppState], replacing the XML [SharedPreferences] that had to be fully
+ * rewritten and synced on every commit.
+ *
+ * The file is double-buffered: it holds two fixed-size slots, each with a sequence number and a CRC32 checksum. A write
+ * goes to the slot that doesn't hold the current state and is followed by a single fsync, so a crash in the middle of a
+ * write leaves a slot with an invalid checksum, and the previous state is read from the other slot. On startup, the
+ * file is memory-mapped and the valid slot with the highest sequence number wins.
+ *
+ * This keeps the crash-safety of the failed toggle attempt counter: the incremented counter is durable before any
+ * component is toggled, and is only reset by the write that records the completed switch. The same goes for the
+ * [SwitchCheckpoint] of a switch, which is written along with the incremented counter, and for the [AppliedComponents],
+ * which are cleared by that write and recorded again by the one completing the switch.
+ *
+ * A failed write is logged and reported to the caller, which keeps going with the new state in memory: the file keeps
+ * the previous state, as if the process had died before the write, which the next [MultiDynamicAppManager.initialize]
+ * recovers from.
+ */
+internal class DynamicAppStateStore(private val file: File) {
+
+    private var state: DynamicAppState? = null
+    private var sequence = 0L
+
+    /**
+     * The slot holding the current state, or -1 if neither slot is valid.
+     */
+    private var slot = -1
+
+    val exists: Boolean
+        get() = file.exists()
+
+    /**
+     * Returns the current state, reading it from the file the first time.
+     */
+    @Synchronized
+    fun read(): DynamicAppState {
+        return state ?: load().also { state = it }
+    }
+
+    /**
+     * Durably replaces the current state.
+     *
+     * @return True if the state was written, false if it's only replaced in memory since the file couldn't be written.
+     */
+    @Synchronized
+    fun write(newState: DynamicAppState): Boolean {
+        if (state == null) {
+            state = load()
+        }
+
+        var payload = encode(newState)
+        if (payload.size > SLOT_SIZE - SLOT_HEADER_SIZE - SLOT_CHECKSUM_SIZE && newState.mainActivities != null) {
+            // The main activities are only a cache, they're kept in memory and resolved again by the next process
+            Log.d(TAG, "STUFFING -- Main activities too large to be stored, dropping them from the file")
+            payload = encode(newState.copy(mainActivities = null))
+        }
+        if (payload.size > SLOT_SIZE - SLOT_HEADER_SIZE - SLOT_CHECKSUM_SIZE) {
+            throw IllegalArgumentException("State too large to be stored: $newState")
+        }
+
+        val newSequence = sequence + 1
+        val newSlot = if (slot == 0) 1 else 0
+
+        val buffer = ByteBuffer.allocate(SLOT_SIZE)
+        buffer.putInt(SLOT_MAGIC)
+        buffer.putInt(FORMAT_VERSION)
+        buffer.putLong(newSequence)
+        buffer.putInt(payload.size)
+        buffer.put(payload)
+        buffer.putInt(checksum(buffer.array(), payload.size))
+        buffer.rewind()
+
+        try {
+            RandomAccessFile(file, "rw").use { randomAccessFile ->
+                val channel = randomAccessFile.channel
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, newSlot.toLong() * SLOT_SIZE + buffer.position())
+                }
+                channel.force(true)
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "STUFFING -- Couldn't write state $newState", e)
+            state = newState
+            return false
+        }
+
+        state = newState
+        sequence = newSequence
+        slot = newSlot
+        return true
+    }
+
+    /**
+     * Atomically replaces the current state with the result of [transform].
+     *
+     * @return True if the state was written, see [write].
+     */
+    @Synchronized
+    fun update(transform: (DynamicAppState) -> DynamicAppState): Boolean {
+        return write(transform(read()))
+    }
+
+    /**
+     * Imports the state previously stored in the [preferences], then clears them. Does nothing if the store already
+     * exists.
+     *
+     * @return True if a state was migrated, false otherwise.
+     */
+    @Synchronized
+    fun migrateFrom(preferences: SharedPreferences): Boolean {
+        if (exists || preferences.all.isEmpty()) {
+            return false
+        }
+
+        val migratedState = DynamicAppState(
+                systemVersion = preferences.getInt(DynamicAppManagerPrefs.systemVersionKey, 0),
+                appFamilyChangeSignal = preferences.getBoolean(DynamicAppManagerPrefs.appFamilyChangeSignalKey, false),
+                appFamily = preferences.getString(DynamicAppManagerPrefs.appFamilyKey, null),
+                expectedAppFamily = preferences.getString(DynamicAppManagerPrefs.expectedAppFamilyKey, null),
+                previousAppFamily = preferences.getString(DynamicAppManagerPrefs.previousAppFamilyKey, null),
+                previousVersion = preferences.getInt(DynamicAppManagerPrefs.previousVersionKey, 0),
+                failedToggleAttemptCount = preferences.getInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, 0))
+
+        Log.d(TAG, "STUFFING -- Migrating state from preferences: $migratedState")
+
+        // The preferences are kept until the state is durable, so the migration is retried by the next process
+        if (!write(migratedState)) {
+            return false
+        }
+        preferences.edit().clear().commit()
+        return true
+    }
+
+    private fun load(): DynamicAppState {
+        if (!file.exists()) {
+            return DynamicAppState()
+        }
+
+        try {
+            RandomAccessFile(file, "r").use { randomAccessFile ->
+                val length = Math.min(randomAccessFile.length(), 2L * SLOT_SIZE)
+                val buffer = randomAccessFile.channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+
+                var loadedState: DynamicAppState? = null
+                for (candidateSlot in 0..1) {
+                    val candidateSequence = readSlotSequence(buffer, candidateSlot) ?: continue
+                    if (loadedState != null && candidateSequence <= sequence) continue
+
+                    val candidateState = readSlotState(buffer, candidateSlot) ?: continue
+                    loadedState = candidateState
+                    sequence = candidateSequence
+                    slot = candidateSlot
+                }
+
+                return loadedState ?: run {
+                    Log.e(TAG, "STUFFING -- No valid state in $file")
+                    DynamicAppState()
+                }
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "STUFFING -- Couldn't read state from $file", e)
+            return DynamicAppState()
+        }
+    }
+
+    /**
+     * Returns the sequence number of the [slot] if its header and checksum are valid, null otherwise.
+     */
+    private fun readSlotSequence(buffer: ByteBuffer, slot: Int): Long? {
+        val offset = slot * SLOT_SIZE
+        if (buffer.limit() < offset + SLOT_SIZE) return null
+        if (buffer.getInt(offset) != SLOT_MAGIC || buffer.getInt(offset + 4) !in MIN_FORMAT_VERSION..FORMAT_VERSION) {
+            return null
+        }
+
+        val payloadSize = buffer.getInt(offset + 16)
+        if (payloadSize < 0 || payloadSize > SLOT_SIZE - SLOT_HEADER_SIZE - SLOT_CHECKSUM_SIZE) return null
+
+        val bytes = ByteArray(SLOT_HEADER_SIZE + payloadSize)
+        for (i in bytes.indices) {
+            bytes[i] = buffer.get(offset + i)
+        }
+        if (buffer.getInt(offset + SLOT_HEADER_SIZE + payloadSize) != checksum(bytes, payloadSize)) return null
+
+        return buffer.getLong(offset + 8)
+    }
+
+    private fun readSlotState(buffer: ByteBuffer, slot: Int): DynamicAppState? {
+        val offset = slot * SLOT_SIZE
+        val payload = ByteArray(buffer.getInt(offset + 16))
+        for (i in payload.indices) {
+            payload[i] = buffer.get(offset + SLOT_HEADER_SIZE + i)
+        }
+
+        return try {
+            decode(payload, buffer.getInt(offset + 4))
+        } catch (e: IOException) {
+            Log.e(TAG, "STUFFING -- Couldn't decode state in slot $slot", e)
+            null
+        }
+    }
+
+    /**
+     * The checksum of the sequence number, payload length and payload of a slot starting at the beginning of [bytes].
+     */
+    private fun checksum(bytes: ByteArray, payloadSize: Int): Int {
+        val crc = CRC32()
+        crc.update(bytes, 8, SLOT_HEADER_SIZE - 8 + payloadSize)
+        return crc.value.toInt()
+    }
+
+    private fun encode(state: DynamicAppState): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { output ->
+            output.writeInt(state.systemVersion)
+            output.writeBoolean(state.appFamilyChangeSignal)
+            output.writeNullableString(state.appFamily)
+            output.writeNullableString(state.expectedAppFamily)
+            output.writeNullableString(state.previousAppFamily)
+            output.writeInt(state.previousVersion)
+            output.writeInt(state.failedToggleAttemptCount)
+            output.writeLong(state.apkFingerprint)
+            output.writeSwitchCheckpoint(state.switchCheckpoint)
+            output.writeAppliedComponents(state.appliedComponents)
+            output.writeMainActivities(state.mainActivities)
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun decode(payload: ByteArray, formatVersion: Int): DynamicAppState {
+        DataInputStream(ByteArrayInputStream(payload)).use { input ->
+            return DynamicAppState(
+                    systemVersion = input.readInt(),
+                    appFamilyChangeSignal = input.readBoolean(),
+                    appFamily = input.readNullableString(),
+                    expectedAppFamily = input.readNullableString(),
+                    previousAppFamily = input.readNullableString(),
+                    previousVersion = input.readInt(),
+                    failedToggleAttemptCount = input.readInt(),
+                    apkFingerprint = if (formatVersion >= 2) input.readLong() else 0L,
+                    switchCheckpoint = if (formatVersion >= 3) input.readSwitchCheckpoint() else null,
+                    appliedComponents = if (formatVersion >= 4) input.readAppliedComponents() else null,
+                    mainActivities = if (formatVersion >= 5) input.readMainActivities() else null)
+        }
+    }
+
+    private fun DataOutputStream.writeNullableString(value: String?) {
+        writeBoolean(value != null)
+        if (value != null) writeUTF(value)
+    }
+
+    private fun DataInputStream.readNullableString(): String? {
+        return if (readBoolean()) readUTF() else null
+    }
+
+    private fun DataOutputStream.writeSwitchCheckpoint(checkpoint: SwitchCheckpoint?) {
+        writeBoolean(checkpoint != null)
+        if (checkpoint != null) {
+            writeUTF(checkpoint.appFamily)
+            writeNullableString(checkpoint.previousTarget)
+            writeBoolean(checkpoint.deferNonCritical)
+            writeInt(checkpoint.planId)
+            writeInt(checkpoint.cursor)
+        }
+    }
+
+    private fun DataInputStream.readSwitchCheckpoint(): SwitchCheckpoint? {
+        if (!readBoolean()) return null
+
+        return SwitchCheckpoint(
+                appFamily = readUTF(),
+                previousTarget = readNullableString(),
+                deferNonCritical = readBoolean(),
+                planId = readInt(),
+                cursor = readInt())
+    }
+
+    private fun DataOutputStream.writeAppliedComponents(applied: AppliedComponents?) {
+        writeBoolean(applied != null)
+        if (applied != null) {
+            writeNullableString(applied.target)
+            writeNullableString(applied.deferred?.target)
+            writeNullableString(applied.deferred?.previousTarget)
+            writeInt(applied.versionCode)
+            writeInt(applied.indexFingerprint)
+        }
+    }
+
+    private fun DataInputStream.readAppliedComponents(): AppliedComponents? {
+        if (!readBoolean()) return null
+
+        val target = readNullableString()
+        val deferredTarget = readNullableString()
+        val deferredPreviousTarget = readNullableString()
+        return AppliedComponents(
+                target = target,
+                deferred = deferredTarget?.let { DeferredComponents(it, deferredPreviousTarget) },
+                versionCode = readInt(),
+                indexFingerprint = readInt())
+    }
+
+    private fun DataOutputStream.writeMainActivities(mainActivities: MainActivities?) {
+        writeBoolean(mainActivities != null)
+        if (mainActivities != null) {
+            writeInt(mainActivities.versionCode)
+            writeInt(mainActivities.indexFingerprint)
+            writeInt(mainActivities.classNames.size)
+            mainActivities.classNames.forEach { (appFamily, className) ->
+                writeUTF(appFamily)
+                writeUTF(className)
+            }
+        }
+    }
+
+    private fun DataInputStream.readMainActivities(): MainActivities? {
+        if (!readBoolean()) return null
+
+        val versionCode = readInt()
+        val indexFingerprint = readInt()
+        val classNames = HashMap<String, String>()
+        repeat(readInt()) {
+            classNames[readUTF()] = readUTF()
+        }
+        return MainActivities(versionCode, indexFingerprint, classNames)
+    }
+}
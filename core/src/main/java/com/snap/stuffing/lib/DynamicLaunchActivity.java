@@ -18,6 +18,10 @@ import dagger.android.AndroidInjection;
  * 
  * The Android launcher launches a specific Activity. Given that the specific Activity type is bound to its parent application, 
  * Stuffing provides a layer of indirection/routing when launching activities, which is this special activity.
+ *
+ * When launcher alias routing is enabled in the {@link com.snap.stuffing.api.DynamicAppConfig}, the launcher opens the
+ * active app family's main activity through its activity-alias instead, and this activity is only used for app families
+ * without such an alias.
  */
 public class DynamicLaunchActivity extends Activity {
     private static final String TAG = "DynamicLaunchActivity";
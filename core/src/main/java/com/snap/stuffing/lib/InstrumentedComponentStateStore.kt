@@ -0,0 +1,86 @@
+package com.snap.stuffing.lib
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A [ComponentStateStore] operation measured by an [InstrumentedComponentStateStore].
+ */
+internal enum class ComponentStateOperation {
+    READ,
+    WRITE
+}
+
+/**
+ * Counts the binder calls made through the [delegate], and the number of components and time spent for each
+ * [ComponentStateOperation]. Counters only grow, so the cost of a switch is the difference of the counters before and
+ * after it.
+ *
+ * A write counts as one call when the [delegate] [supportsBatchWrites], and as one call per component otherwise.
+ */
+internal class InstrumentedComponentStateStore(
+        private val delegate: ComponentStateStore
+) : ComponentStateStore {
+
+    private val ipcCounts = Array(ComponentStateOperation.values().size) { AtomicLong() }
+    private val componentCounts = Array(ComponentStateOperation.values().size) { AtomicLong() }
+    private val latenciesNanos = Array(ComponentStateOperation.values().size) { AtomicLong() }
+
+    override val supportsBatchWrites: Boolean
+        get() = delegate.supportsBatchWrites
+
+    /**
+     * The number of binder calls made for the [operation], or for all operations if null.
+     */
+    fun ipcCount(operation: ComponentStateOperation? = null): Long = sum(ipcCounts, operation)
+
+    /**
+     * The number of components read or written by the [operation], or by all operations if null.
+     */
+    fun componentCount(operation: ComponentStateOperation? = null): Long = sum(componentCounts, operation)
+
+    /**
+     * The time spent in the [operation], or in all operations if null, in nanoseconds.
+     */
+    fun latencyNanos(operation: ComponentStateOperation? = null): Long = sum(latenciesNanos, operation)
+
+    override fun getComponentEnabledSetting(className: String): Int {
+        val start = System.nanoTime()
+        try {
+            return delegate.getComponentEnabledSetting(className)
+        } finally {
+            record(ComponentStateOperation.READ, 1, 1, start)
+        }
+    }
+
+    override fun setComponentEnabledSettings(classNames: List<String>,
+                                             states: IntArray,
+                                             progress: ((writtenCount: Int, totalCount: Int) -> Unit)?) {
+        if (classNames.isEmpty()) return
+
+        val start = System.nanoTime()
+        try {
+            delegate.setComponentEnabledSettings(classNames, states, progress)
+        } finally {
+            val ipcCount = if (delegate.supportsBatchWrites) {
+                (classNames.size + BATCH_WRITE_SIZE - 1) / BATCH_WRITE_SIZE
+            } else {
+                classNames.size
+            }
+            record(ComponentStateOperation.WRITE, ipcCount, classNames.size, start)
+        }
+    }
+
+    private fun record(operation: ComponentStateOperation, ipcCount: Int, componentCount: Int, startNanos: Long) {
+        ipcCounts[operation.ordinal].addAndGet(ipcCount.toLong())
+        componentCounts[operation.ordinal].addAndGet(componentCount.toLong())
+        latenciesNanos[operation.ordinal].addAndGet(System.nanoTime() - startNanos)
+    }
+
+    private fun sum(counters: Array<AtomicLong>, operation: ComponentStateOperation?): Long {
+        return if (operation != null) {
+            counters[operation.ordinal].get()
+        } else {
+            counters.fold(0L) { total, counter -> total + counter.get() }
+        }
+    }
+}
@@ -1,12 +1,27 @@
 package com.snap.stuffing.lib
 
+import android.app.Activity
+import android.app.ActivityManager
 import android.app.Application
 import android.content.Context
 import android.content.Intent
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.os.Process
+import android.os.SystemClock
 import android.util.Log
 import com.jakewharton.processphoenix.ProcessPhoenix
 import com.snap.stuffing.api.AppSwitchHook
 import com.snap.stuffing.api.DynamicAppConfig
+import com.snap.stuffing.api.DynamicAppOperation
+import com.snap.stuffing.api.DynamicAppOperationListener
+import com.snap.stuffing.api.LiveAppSwapper
+import com.snap.stuffing.api.SwitchMetrics
+import com.snap.stuffing.api.SwitchMetricsListener
+import com.snap.stuffing.api.exopackage.ExopackageDexLoader
+import java.util.concurrent.CancellationException
+import java.util.concurrent.atomic.AtomicReference
 
 private const val TAG = "MultiDynamicAppManager"
 
@@ -17,60 +32,148 @@ private const val TAG = "MultiDynamicAppManager"
  * Version 2: Add new metadata.
  * Version 1: Switched back to DynamicLaunchActivity.
  */
-private const val SYSTEM_VERSION = 2
+internal const val SYSTEM_VERSION = 2
 
 /**
  * Manages multiple "[Application]s" within a single APK.
+ *
+ * When a [switchMetricsListener] is provided, the [SwitchMetrics] of each switch are recorded across processes and
+ * reported once the first activity of the new process is created.
+ *
+ * When the [DynamicAppConfig.liveAppSwapper] supports the target app family, switches are completed in the same process
+ * instead of restarting it.
+ *
+ * Component states are read and written through the [componentStateStore] when provided, e.g. to run switches in tests
+ * without a device, and through the PackageManager otherwise.
+ *
+ * Switches record a [SwitchCheckpoint] in the state as they write their components. When the process dies midway, the
+ * next [initialize] resumes the switch toward the same app family from its last checkpoint, up to
+ * [MAX_RESUMED_ATTEMPT_COUNT] times. The checkpoint is discarded, as if the switch had failed without one, when the
+ * [SYSTEM_VERSION], the app version or the component index changed since it was recorded.
+ *
+ * All state transitions (initialization, switches and refreshes) run one at a time: synchronous calls run them on the
+ * calling thread once the running transition completes, and asynchronous calls on the [backgroundExecutor]. The
+ * [appSwitchHook] of a synchronous switch is therefore invoked on the caller's thread. A switch request that didn't
+ * start yet is superseded by any later one, so rapid requests only toggle the components of the last app family
+ * requested. Readers see an immutable [StateSnapshot] that each transition replaces, so reads don't need any lock.
  */
-class MultiDynamicAppManager(
+class MultiDynamicAppManager @JvmOverloads constructor(
         private val appContext: Context,
         private val defaultAppFamily: String,
         private val config: DynamicAppConfig,
-        private val appSwitchHook: AppSwitchHook): BaseDynamicAppManager(appContext, TAG) {
+        private val appSwitchHook: AppSwitchHook,
+        private val switchMetricsListener: SwitchMetricsListener? = null,
+        componentStateStore: ComponentStateStore? = null
+): BaseDynamicAppManager(appContext, TAG, config.launcherAliasRouting, config.appVersionCode, componentStateStore) {
+
+    /**
+     * The state exposed to readers, only replaced through [publish].
+     */
+    @Volatile
+    private var snapshot = StateSnapshot("", false)
 
-    private var hasAppFamilyChangeSignal = false
+    private val snapshotLock = Any()
+
+    /**
+     * The latest switch request that didn't start yet, see [requestSwitch].
+     */
+    private val pendingSwitch = AtomicReference<SwitchRequest?>()
+
+    private val latencyHistory by lazy {
+        SwitchLatencyHistory(appContext.getSharedPreferences(
+                DynamicAppManagerPrefs.switchLatencyConfig, Context.MODE_PRIVATE))
+    }
 
     override val active: Boolean = true
 
-    override var applicationFamily: String = ""
-        private set
+    override val applicationFamily: String
+        get() = snapshot.applicationFamily
 
-    override fun initialize() {
-        hasAppFamilyChangeSignal = preferences.getBoolean(DynamicAppManagerPrefs.appFamilyChangeSignalKey, false)
-        val currentAppFamily = preferences.getString(DynamicAppManagerPrefs.appFamilyKey, null)
-        val expectedAppFamily = preferences.getString(DynamicAppManagerPrefs.expectedAppFamilyKey, null)
-        val previousAppVersionCode = preferences.getInt(DynamicAppManagerPrefs.previousVersionKey, 0)
-        val systemVersion = preferences.getInt(DynamicAppManagerPrefs.systemVersionKey, 0)
-        val hadComponentsModified = appComponentModifier.checkComponentListModifiedState()
-        failedToggleAttemptCount = preferences.getInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, 0)
+    override fun initialize(progress: ProgressCallback?) {
+        runSerially { initializeState(progress) }
+    }
 
+    private fun initializeState(progress: ProgressCallback?) {
+        val state = stateStore.read()
+        val hasAppFamilyChangeSignal = state.appFamilyChangeSignal
+        publish { it.copy(hasAppFamilyChangeSignal = hasAppFamilyChangeSignal) }
+        val currentAppFamily = state.appFamily
+        val expectedAppFamily = state.expectedAppFamily
+        val previousAppVersionCode = state.previousVersion
+        val systemVersion = state.systemVersion
+        failedToggleAttemptCount = state.failedToggleAttemptCount
+
+        // On a steady-state cold start, the app version code is resolved from the APK fingerprint recorded in the
+        // state, and no PackageManager call is made.
         Log.d(TAG, "STUFFING -- Initializing with state: " +
                 "previousAppVersionCode=$previousAppVersionCode, appVersionCode=$appVersionCode, " +
                 "hasAppFamilyChangeSignal=$hasAppFamilyChangeSignal currentAppFamily=$currentAppFamily, " +
                 "expectedAppFamily=$expectedAppFamily, " +
-                "systemVersion=$systemVersion, hadComponentsModified=$hadComponentsModified, " +
-                "failedToggleAttemptCount=$failedToggleAttemptCount")
+                "systemVersion=$systemVersion, failedToggleAttemptCount=$failedToggleAttemptCount")
+
+        val checkpoint = state.switchCheckpoint
+        if (checkpoint != null && failedToggleAttemptCount in 1..MAX_RESUMED_ATTEMPT_COUNT &&
+                systemVersion == SYSTEM_VERSION && appComponentModifier.canResumeSwitch(checkpoint)) {
+            Log.d(TAG, "STUFFING -- Resuming interrupted switch: $checkpoint")
 
-        if (systemVersion != SYSTEM_VERSION || currentAppFamily.isNullOrEmpty() ||
+            publish { it.copy(applicationFamily = currentAppFamily.orEmpty()) }
+            if (checkpoint.appFamily == currentAppFamily) {
+                refreshManifestComponentsOnInconsistency(progress)
+            } else {
+                val isFirstTimeSettingAppFamily = currentAppFamily.isNullOrEmpty()
+                val changedComponentCount = setCurrentAppFamily(checkpoint.appFamily, isFirstTimeSettingAppFamily,
+                        progress = progress, resumeFrom = checkpoint)
+                if (changedComponentCount > 0) {
+                    rebirthIfDisabledComponentsRunning()
+                }
+            }
+
+        } else if (systemVersion != SYSTEM_VERSION || currentAppFamily.isNullOrEmpty() ||
                 (failedToggleAttemptCount in 1..MAX_FAILED_ATTEMPT_COUNT)) {
 
-            val componentsModified = setCurrentAppFamily(defaultAppFamily, !hadComponentsModified)
-            if (hadComponentsModified && componentsModified) {
-                Log.d(TAG, "Rebooting the application since the appFamily changed some components")
-                ProcessPhoenix.triggerRebirth(appContext)
+            val hadComponentsModified = appComponentModifier.checkComponentListModifiedState()
+            Log.d(TAG, "STUFFING -- hadComponentsModified=$hadComponentsModified")
+
+            // Components that were never modified are in their manifest defaults, which the build may have aligned
+            // with the default app family already.
+            val changedComponentCount = setCurrentAppFamily(defaultAppFamily, !hadComponentsModified,
+                    fromManifestDefaults = !hadComponentsModified, progress = progress)
+            if (hadComponentsModified && changedComponentCount > 0) {
+                rebirthIfDisabledComponentsRunning()
             }
 
         } else {
-            applicationFamily = currentAppFamily
+            publish { it.copy(applicationFamily = currentAppFamily) }
 
             // When the app family hasn't changed, check if the app version was updated.
             // If it was, we might need to refresh the state of newly added or removed manifest components.
             if (appVersionCode != previousAppVersionCode) {
                 Log.d(TAG, "STUFFING -- appVersionCode changed from $previousAppVersionCode to $appVersionCode, refreshing manifest components")
-                refreshManifestComponentsOnInconsistency()
+                refreshManifestComponentsOnInconsistency(progress)
             } else if (currentAppFamily != expectedAppFamily) {
                 Log.d(TAG, "STUFFING -- currentAppFamily $currentAppFamily does not match expectedAppFamily $expectedAppFamily, refreshing manifest components")
-                refreshManifestComponentsOnInconsistency()
+                refreshManifestComponentsOnInconsistency(progress)
+            } else if (apkFingerprint != state.apkFingerprint) {
+                // Record the fingerprint of this APK, so the next cold starts can skip querying the version code.
+                stateStore.update { it.copy(apkFingerprint = apkFingerprint) }
+            }
+        }
+
+        if (snapshot.hasAppFamilyChangeSignal && switchMetricsListener != null) {
+            (appContext.applicationContext as? Application)?.let {
+                SwitchMetricsReporter(it, switchMetricsListener).register()
+            }
+        }
+
+        // Launch-critical components were applied synchronously by the last switch, apply the remaining ones now.
+        if (appComponentModifier.hasDeferredComponents()) {
+            backgroundExecutor.execute {
+                runSerially {
+                    appComponentModifier.applyDeferredComponents(TAG)
+                    if (!appComponentModifier.hasDeferredComponents()) {
+                        ExopackageDexLoader.recordEnabledAppFamilies(appContext, applicationFamily)
+                    }
+                }
             }
         }
 
@@ -78,6 +181,73 @@ class MultiDynamicAppManager(
         //appComponentModifier.printComponentEnabledStates(TAG)
     }
 
+    /**
+     * Restarts the process if a component disabled by the last switch is running in it, since it belongs to another app
+     * family. Providers are created before the application, so any disabled provider is considered running. Disabled
+     * activities can only be detected once created, so the first activity of the process is checked when it's created.
+     * Receivers aren't checked since disabling them only affects the next broadcasts.
+     */
+    private fun rebirthIfDisabledComponentsRunning() {
+        val disabledComponents = appComponentModifier.lastDisabledComponents
+
+        val runningComponent = disabledComponents.entries.firstOrNull { it.value == ComponentType.PROVIDER }?.key
+                ?: findRunningService(disabledComponents)
+        if (runningComponent != null) {
+            Log.d(TAG, "Rebooting the application since $runningComponent was disabled while running")
+            ProcessPhoenix.triggerRebirth(appContext)
+            return
+        }
+
+        if (disabledComponents.values.contains(ComponentType.ACTIVITY)) {
+            (appContext.applicationContext as? Application)?.let {
+                it.registerActivityLifecycleCallbacks(FirstActivityGuard(it, disabledComponents))
+            }
+        }
+    }
+
+    @Suppress("DEPRECATION")
+    private fun findRunningService(disabledComponents: Map<String, ComponentType>): String? {
+        if (!disabledComponents.values.contains(ComponentType.SERVICE)) {
+            return null
+        }
+
+        // Only the services of the calling app are returned since API 26, which is all that is needed here.
+        val activityManager = appContext.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        return activityManager.getRunningServices(Int.MAX_VALUE)
+                ?.firstOrNull {
+                    it.pid == Process.myPid() &&
+                            it.service.packageName == appContext.packageName &&
+                            disabledComponents[it.service.className] == ComponentType.SERVICE
+                }
+                ?.service?.className
+    }
+
+    /**
+     * Restarts the process if its first activity was disabled by the last switch.
+     */
+    private class FirstActivityGuard(
+            private val application: Application,
+            private val disabledComponents: Map<String, ComponentType>
+    ): Application.ActivityLifecycleCallbacks {
+
+        override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {
+            application.unregisterActivityLifecycleCallbacks(this)
+
+            val className = activity.componentName.className
+            if (disabledComponents[className] == ComponentType.ACTIVITY) {
+                Log.d(TAG, "Rebooting the application since $className was disabled while starting")
+                ProcessPhoenix.triggerRebirth(application)
+            }
+        }
+
+        override fun onActivityStarted(activity: Activity) {}
+        override fun onActivityResumed(activity: Activity) {}
+        override fun onActivityPaused(activity: Activity) {}
+        override fun onActivityStopped(activity: Activity) {}
+        override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle) {}
+        override fun onActivityDestroyed(activity: Activity) {}
+    }
+
     override fun onEvent(eventName: String) {
         config.events[eventName]?.run()
     }
@@ -87,13 +257,116 @@ class MultiDynamicAppManager(
     override fun returnToDefaultFamily() {
         Log.d(TAG, "STUFFING -- returnToDefaultFamily")
 
-        setCurrentAppFamily(defaultAppFamily, false)
+        requestSwitch(SwitchRequest(defaultAppFamily, false, false, null, null))
     }
 
     override fun switchToAppFamily(appFamily: String, useSwitchActivity: Boolean, launchIntent: Intent?) {
+        requestSwitch(SwitchRequest(appFamily, true, useSwitchActivity, launchIntent, null))
+    }
+
+    override fun switchToAppFamilyAsync(appFamily: String,
+                                        useSwitchActivity: Boolean,
+                                        launchIntent: Intent?,
+                                        listener: DynamicAppOperationListener?): DynamicAppOperation {
+        val operation = AsyncDynamicAppOperation(listener)
+        requestSwitch(SwitchRequest(appFamily, true, useSwitchActivity, launchIntent, operation))
+        return operation
+    }
+
+    /**
+     * Makes the [request] the pending switch, superseding the previous pending one if any, and runs it once no other
+     * transition is running: on the calling thread for synchronous requests, and on the [backgroundExecutor] for the
+     * requests with an [SwitchRequest.operation].
+     */
+    private fun requestSwitch(request: SwitchRequest) {
+        pendingSwitch.getAndSet(request)?.let {
+            Log.d(TAG, "STUFFING -- Switch to ${it.appFamily} superseded by a switch to ${request.appFamily}")
+            it.operation?.abort(CancellationException("Superseded by a switch to ${request.appFamily}"))
+        }
+
+        if (request.operation == null) {
+            runSerially { runSwitch(request) }
+        } else {
+            backgroundExecutor.execute { runSerially { runSwitch(request) } }
+        }
+    }
+
+    /**
+     * Runs the [request], unless a later request superseded it while it was pending. Errors of synchronous requests are
+     * rethrown to their caller.
+     */
+    private fun runSwitch(request: SwitchRequest) {
+        if (!pendingSwitch.compareAndSet(request, null)) {
+            Log.d(TAG, "STUFFING -- Skipping superseded switch to ${request.appFamily}")
+            return
+        }
+
+        val operation = request.operation
+        if (operation != null && !operation.start()) {
+            Log.d(TAG, "STUFFING -- Switch to ${request.appFamily} cancelled before starting")
+            return
+        }
+
+        try {
+            if (request.relaunch) {
+                switchAndRelaunch(request.appFamily, request.useSwitchActivity, request.launchIntent, operation)
+            } else {
+                setCurrentAppFamily(request.appFamily, false)
+            }
+            operation?.complete()
+        } catch (e: Exception) {
+            Log.e(TAG, "STUFFING -- Switch to ${request.appFamily} failed", e)
+            if (operation == null) {
+                throw e
+            }
+            operation.fail(e)
+        }
+    }
+
+    /**
+     * Replaces the [snapshot] with the result of [transform]. Transitions run one at a time, but signals can be
+     * consumed from any thread, so writers are serialized.
+     */
+    private fun publish(transform: (StateSnapshot) -> StateSnapshot) {
+        synchronized(snapshotLock) {
+            snapshot = transform(snapshot)
+        }
+    }
+
+    /**
+     * The state of the manager exposed to readers.
+     */
+    private data class StateSnapshot(val applicationFamily: String, val hasAppFamilyChangeSignal: Boolean)
+
+    /**
+     * A request to switch to the [appFamily], relaunching the app if [relaunch] is set.
+     */
+    private class SwitchRequest(
+            val appFamily: String,
+            val relaunch: Boolean,
+            val useSwitchActivity: Boolean,
+            val launchIntent: Intent?,
+            val operation: AsyncDynamicAppOperation?)
+
+    /**
+     * Switches to the [appFamily] and relaunches the app, completing the [operation] right before relaunching since the
+     * process exits.
+     */
+    private fun switchAndRelaunch(appFamily: String,
+                                  useSwitchActivity: Boolean,
+                                  launchIntent: Intent?,
+                                  operation: AsyncDynamicAppOperation?) {
         Log.d(TAG, "STUFFING -- switchToAppFamily $appFamily")
 
-        setCurrentAppFamily(appFamily, false)
+        val metrics = switchMetricsListener?.let {
+            SwitchMetricsRecorder(applicationFamily, appFamily).apply { mark(SwitchMetrics.PHASE_SWITCH_START) }
+        }
+
+        // A switch completed in-process has no next initialize() to write the non-critical components, so they are
+        // all written before swapping
+        val liveAppSwapper = config.liveAppSwapper?.takeIf { it.canSwapInProcess(appFamily) }
+        val changedComponentCount = setCurrentAppFamily(appFamily, false, metrics = metrics,
+                progress = operation?.let { it::progress }, deferNonCritical = liveAppSwapper == null)
 
         val relaunchIntent = appComponentModifier.getLaunchIntentForAppFamily(applicationFamily)?.apply {
             if (launchIntent != null && launchIntent.extras != null) {
@@ -101,82 +374,197 @@ class MultiDynamicAppManager(
             }
         }
 
-        if (useSwitchActivity) {
-            if (relaunchIntent != null) {
-                AppSwitcher.beginIntentToSwitchApp(appContext, relaunchIntent)
-            } else {
-                AppSwitcher.beginIntentToSwitchApp(appContext)
-            }
+        operation?.complete()
+
+        if (liveAppSwapper != null) {
+            swapInProcess(liveAppSwapper, appFamily, relaunchIntent, changedComponentCount, metrics)
+            return
+        }
+
+        // No PACKAGE_CHANGED broadcast is sent when no component changed, so there is nothing to wait for in the
+        // switch activity
+        if (useSwitchActivity && changedComponentCount > 0) {
+            AppSwitcher.beginIntentToSwitchApp(appContext, relaunchIntent, changedComponentCount, metrics)
         } else {
+            Log.d(TAG, "STUFFING -- Relaunching in-process, changedComponentCount=$changedComponentCount")
             if (relaunchIntent != null) {
-                AppSwitcher.endIntentToSwitchApp(appContext, relaunchIntent)
+                AppSwitcher.endIntentToSwitchApp(appContext, relaunchIntent, metrics)
             } else {
                 ProcessPhoenix.triggerRebirth(appContext)
             }
         }
     }
 
-    override fun hasPendingAppFamilyChangeSignal() = hasAppFamilyChangeSignal
+    /**
+     * Completes a switch to the [appFamily] in the same process: once the package manager has broadcast all the
+     * [changedComponentCount] component changes of the switch, the [liveAppSwapper] replaces the running application
+     * with the one of the [appFamily]. The broadcast is awaited in this process since components are modified with
+     * [android.content.pm.PackageManager.DONT_KILL_APP].
+     *
+     * The [metrics] are reported when the first activity of the new application is created, since no new process
+     * reports them.
+     */
+    private fun swapInProcess(liveAppSwapper: LiveAppSwapper,
+                              appFamily: String,
+                              relaunchIntent: Intent?,
+                              changedComponentCount: Int,
+                              metrics: SwitchMetricsRecorder?) {
+        Log.d(TAG, "STUFFING -- Swapping to $appFamily in-process, changedComponentCount=$changedComponentCount")
+
+        val swap = { timedOut: Boolean ->
+            metrics?.let {
+                it.mark(SwitchMetrics.PHASE_PACKAGE_CHANGED)
+                it.timedOut = timedOut
+                it.mark(SwitchMetrics.PHASE_RELAUNCH)
+                relaunchIntent?.putExtra(SwitchMetricsRecorder.KEY_SWITCH_METRICS, it.toBundle())
+            }
+            if (metrics != null && switchMetricsListener != null) {
+                (appContext.applicationContext as? Application)?.let {
+                    SwitchMetricsReporter(it, switchMetricsListener).register()
+                }
+            }
+            liveAppSwapper.swapToAppFamily(appFamily, relaunchIntent)
+        }
+
+        // No PACKAGE_CHANGED broadcast is sent when no component changed
+        if (changedComponentCount > 0) {
+            PackageChangedWaiter(appContext, changedComponentCount, SystemClock.elapsedRealtime(), latencyHistory, swap)
+                    .start()
+        } else {
+            Handler(Looper.getMainLooper()).post { swap(false) }
+        }
+    }
+
+    /**
+     * Computes the component changes a switch to the [appFamily] would make, without modifying any component. This can be
+     * used to estimate the cost of a switch ahead of time, e.g. to decide whether to use the switch activity.
+     */
+    fun planSwitchToAppFamily(appFamily: String): SwitchPlan = appComponentModifier.planSwitchToAppFamily(appFamily)
+
+    override fun hasPendingAppFamilyChangeSignal() = snapshot.hasAppFamilyChangeSignal
 
     override fun consumePendingAppFamilyChangeSignal() {
         Log.d(TAG, "STUFFING -- Consuming pending appFamilyChangeSignal")
 
-        hasAppFamilyChangeSignal = false
-        preferences.edit().putBoolean(DynamicAppManagerPrefs.appFamilyChangeSignalKey, false).apply()
+        // The signal is cleared for readers right away, and persisted once the running transition, if any, completes
+        publish { it.copy(hasAppFamilyChangeSignal = false) }
+        backgroundExecutor.execute { runSerially { stateStore.update { it.copy(appFamilyChangeSignal = false) } } }
     }
 
-    private fun setCurrentAppFamily(appFamily: String, isFirstTimeSettingAppFamily: Boolean): Boolean {
+    /**
+     * @param fromManifestDefaults Assume every component is in its manifest default state, when none was ever modified.
+     * @param metrics Records the timings and costs of the switch, if any.
+     * @param progress Receives the progress of the component changes, if any.
+     * @param resumeFrom The checkpoint of an interrupted switch to the [appFamily] to resume, if any.
+     * @param deferNonCritical Only write the launch-critical components, the others being written by the next
+     * [initialize]. Ignored when resuming a switch, which keeps the mode of its checkpoint.
+     * @return The number of components modified synchronously by the switch, 0 if none.
+     */
+    private fun setCurrentAppFamily(appFamily: String,
+                                    isFirstTimeSettingAppFamily: Boolean,
+                                    fromManifestDefaults: Boolean = false,
+                                    metrics: SwitchMetricsRecorder? = null,
+                                    progress: ProgressCallback? = null,
+                                    resumeFrom: SwitchCheckpoint? = null,
+                                    deferNonCritical: Boolean = true): Int {
         // Already in this app family, return
         if (appFamily == this.applicationFamily) {
             Log.d(TAG, "STUFFING -- Already in ${this.applicationFamily}")
-            return false
+            return 0
         }
 
         Log.d(TAG, "STUFFING -- Switching app families from ${this.applicationFamily} to $appFamily, appVersionCode=$appVersionCode")
 
         // Inform custom hook that we're about to switch
         appSwitchHook.preAppFamilySwitch(this.applicationFamily, appFamily)
+        metrics?.mark(SwitchMetrics.PHASE_PRE_SWITCH_HOOK)
+
+        val componentStateStore = appComponentModifier.componentStateStore
+        val ipcCountBefore = componentStateStore.ipcCount()
+        val scannedComponentCountBefore = componentStateStore.componentCount(ComponentStateOperation.READ)
+
+        // Unless deferNonCritical is unset, only update the launch-critical manifest components for this app family,
+        // the others are updated in the background by the next initialize()
+        val plan = if (resumeFrom != null) {
+            appComponentModifier.planResumedSwitch(resumeFrom)
+        } else {
+            appComponentModifier.planSwitchToAppFamily(appFamily, fromManifestDefaults = fromManifestDefaults)
+        }
+        val checkpoint = appComponentModifier.checkpointSwitch(
+                appFamily, plan, resumeFrom?.deferNonCritical ?: deferNonCritical, resumeFrom)
+
+        // The components of both app families may be enabled until the switch and its deferred components complete,
+        // and those of every app family when they are in their manifest state
+        ExopackageDexLoader.recordEnabledAppFamilies(appContext,
+                this.applicationFamily.takeUnless { fromManifestDefaults }, appFamily)
+
+        // The snapshot of the applied components is dropped until the switch completes
+        stateStore.update {
+            it.copy(failedToggleAttemptCount = failedToggleAttemptCount + 1,
+                    switchCheckpoint = checkpoint,
+                    appliedComponents = null)
+        }
+        metrics?.mark(SwitchMetrics.PHASE_PREFS_COMMIT)
 
-        preferences.edit()
-                .putInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, failedToggleAttemptCount + 1)
-                .commit()
+        val changedComponentCount = appComponentModifier.executeSwitch(plan, checkpoint, TAG, progress) {
+            stateStore.update { state -> state.copy(switchCheckpoint = it) }
+        }
 
-        // Update the manifest components for this app family
-        val componentsModified = appComponentModifier.switchToAppFamily(appFamily, TAG)
+        metrics?.apply {
+            mark(SwitchMetrics.PHASE_COMPONENTS_TOGGLED)
+            ipcCount = (componentStateStore.ipcCount() - ipcCountBefore).toInt()
+            componentsScanned =
+                    (componentStateStore.componentCount(ComponentStateOperation.READ) - scannedComponentCountBefore).toInt()
+            componentsChanged = changedComponentCount
+        }
 
-        // Clear preferences and set all of the values to an initial state.
-        preferences.edit()
-                .clear()
-                .putString(DynamicAppManagerPrefs.appFamilyKey, appFamily)
-                .putString(DynamicAppManagerPrefs.expectedAppFamilyKey, appFamily)
-                .putString(DynamicAppManagerPrefs.previousAppFamilyKey, this.applicationFamily)
-                .putBoolean(DynamicAppManagerPrefs.appFamilyChangeSignalKey, !isFirstTimeSettingAppFamily)
-                .putInt(DynamicAppManagerPrefs.previousVersionKey, appVersionCode)
-                .putInt(DynamicAppManagerPrefs.systemVersionKey, SYSTEM_VERSION)
-                .putInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, 0)
-                .commit()
+        // Replace the whole state with its initial values for this app family.
+        stateStore.write(DynamicAppState(
+                systemVersion = SYSTEM_VERSION,
+                appFamilyChangeSignal = !isFirstTimeSettingAppFamily,
+                appFamily = appFamily,
+                expectedAppFamily = appFamily,
+                previousAppFamily = this.applicationFamily,
+                previousVersion = appVersionCode,
+                failedToggleAttemptCount = 0,
+                apkFingerprint = apkFingerprint,
+                appliedComponents = appComponentModifier.appliedComponents(plan, checkpoint.deferNonCritical),
+                mainActivities = appComponentModifier.mainActivities(appFamily)))
+        metrics?.mark(SwitchMetrics.PHASE_STATE_COMMIT)
+        if (!appComponentModifier.hasDeferredComponents()) {
+            ExopackageDexLoader.recordEnabledAppFamilies(appContext, appFamily)
+        }
 
-        applicationFamily = appFamily
-        return componentsModified
+        publish { it.copy(applicationFamily = appFamily, hasAppFamilyChangeSignal = !isFirstTimeSettingAppFamily) }
+        return changedComponentCount
     }
 
     /**
      * If the app version has changed, it's possible that manifest components were added that
      * don't belong to the current app family, and need to be updated.
      */
-    internal fun refreshManifestComponentsOnInconsistency() {
+    internal fun refreshManifestComponentsOnInconsistency(progress: ProgressCallback? = null) {
         Log.d(TAG, "refreshManifestComponentsOnInconsistency: $applicationFamily")
 
-        preferences.edit()
-                .putInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, failedToggleAttemptCount + 1)
-                .commit()
+        // Every component is read, so the checkpoint only records the app family to resume the refresh toward
+        val plan = appComponentModifier.planSwitchToAppFamily(applicationFamily, fullScan = true)
+        val checkpoint = appComponentModifier.checkpointSwitch(applicationFamily, plan, false)
 
-        appComponentModifier.switchToAppFamily(applicationFamily, TAG)
+        stateStore.update {
+            it.copy(failedToggleAttemptCount = failedToggleAttemptCount + 1,
+                    switchCheckpoint = checkpoint,
+                    appliedComponents = null)
+        }
+
+        appComponentModifier.executeSwitch(plan, checkpoint, TAG, progress)
 
-        preferences.edit()
-                .putString(DynamicAppManagerPrefs.expectedAppFamilyKey, applicationFamily)
-                .putInt(DynamicAppManagerPrefs.previousVersionKey, appVersionCode)
-                .putInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, 0)
-                .commit()
+        stateStore.update {
+            it.copy(expectedAppFamily = applicationFamily,
+                    previousVersion = appVersionCode,
+                    failedToggleAttemptCount = 0,
+                    apkFingerprint = apkFingerprint,
+                    switchCheckpoint = null,
+                    appliedComponents = appComponentModifier.appliedComponents(plan, checkpoint.deferNonCritical))
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+package com.snap.stuffing.lib
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+
+private const val TAG = "PackageChangedWaiter"
+
+/**
+ * How long to wait for more [Intent.ACTION_PACKAGE_CHANGED] broadcasts after one was received for the app, before
+ * considering the package manager done.
+ */
+private const val QUIESCENCE_WINDOW_MILLISECONDS = 300L
+
+/**
+ * Waits for the [Intent.ACTION_PACKAGE_CHANGED] broadcasts of the components modified by a switch, or for the timeout
+ * derived from the [latencyHistory], then invokes [onPackageChanged] on the main thread with whether it timed out.
+ *
+ * The package manager sends no broadcast for components written with their current state, so the
+ * [changedComponentCount] may never be reached. The wait ends as soon as that many components were listed, and
+ * otherwise once no broadcast was received for [QUIESCENCE_WINDOW_MILLISECONDS] after the first one for the app. The
+ * latency of the last broadcast is recorded in the [latencyHistory], and timeouts are recorded separately.
+ *
+ * The timeout starts from [switchStartElapsedRealtime], since everything that happened since the components were
+ * modified is part of the wait.
+ */
+internal class PackageChangedWaiter(
+        private val context: Context,
+        private val changedComponentCount: Int,
+        private val switchStartElapsedRealtime: Long,
+        private val latencyHistory: SwitchLatencyHistory,
+        private val onPackageChanged: (timedOut: Boolean) -> Unit) {
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val receivedComponentNames = HashSet<String>()
+    private var done = false
+    private var lastBroadcastElapsedRealtime = 0L
+
+    val timeoutMillis = latencyHistory.timeoutMillis(changedComponentCount)
+
+    private val broadcastReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context?, intent: Intent?) {
+            Log.d(TAG, "STUFFING -- Intent received: $intent")
+            if (done || intent == null || intent.data?.schemeSpecificPart != this@PackageChangedWaiter.context.packageName) {
+                return
+            }
+
+            intent.getStringArrayExtra(Intent.EXTRA_CHANGED_COMPONENT_NAME_LIST)?.let {
+                receivedComponentNames.addAll(it)
+            }
+            lastBroadcastElapsedRealtime = SystemClock.elapsedRealtime()
+
+            if (changedComponentCount > 0 && receivedComponentNames.size < changedComponentCount) {
+                Log.d(TAG, "STUFFING -- Received ${receivedComponentNames.size} of $changedComponentCount changed components")
+                handler.removeCallbacks(quiescenceRunnable)
+                handler.postDelayed(quiescenceRunnable, QUIESCENCE_WINDOW_MILLISECONDS)
+                return
+            }
+
+            onBroadcastsReceived()
+        }
+    }
+
+    private val quiescenceRunnable = Runnable {
+        Log.d(TAG, "STUFFING -- No more PACKAGE_CHANGED after ${receivedComponentNames.size} components")
+        onBroadcastsReceived()
+    }
+
+    private val timeoutRunnable = Runnable {
+        Log.d(TAG, "STUFFING -- timer expired after ${timeoutMillis}ms")
+        latencyHistory.recordTimeout(changedComponentCount)
+        finish(true)
+    }
+
+    private fun onBroadcastsReceived() {
+        val latencyMillis = lastBroadcastElapsedRealtime - switchStartElapsedRealtime
+        latencyHistory.record(changedComponentCount, latencyMillis)
+        Log.d(TAG, "STUFFING -- PACKAGE_CHANGED received after ${latencyMillis}ms, " +
+                "changedComponentCount=$changedComponentCount")
+
+        finish(false)
+    }
+
+    fun start() {
+        val intentFilter = IntentFilter()
+        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED)
+        intentFilter.addDataScheme("package")
+
+        context.registerReceiver(broadcastReceiver, intentFilter, null, handler)
+        val elapsedMillis = SystemClock.elapsedRealtime() - switchStartElapsedRealtime
+        handler.postDelayed(timeoutRunnable, Math.max(0L, timeoutMillis - elapsedMillis))
+    }
+
+    /**
+     * Stops waiting without invoking [onPackageChanged], if it wasn't invoked yet.
+     */
+    fun stop() {
+        if (!done) {
+            done = true
+            release()
+        }
+    }
+
+    private fun finish(timedOut: Boolean) {
+        if (done) return
+        done = true
+        release()
+        onPackageChanged(timedOut)
+    }
+
+    private fun release() {
+        handler.removeCallbacks(timeoutRunnable)
+        handler.removeCallbacks(quiescenceRunnable)
+        context.unregisterReceiver(broadcastReceiver)
+    }
+}
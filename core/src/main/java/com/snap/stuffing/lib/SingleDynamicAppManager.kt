@@ -4,6 +4,8 @@ import android.content.Context
 import android.content.Intent
 import android.util.Log
 import com.snap.stuffing.api.DynamicAppManager
+import com.snap.stuffing.api.DynamicAppOperation
+import com.snap.stuffing.api.DynamicAppOperationListener
 
 private const val TAG = "SingleDynamicAppManager"
 /**
@@ -21,9 +23,10 @@ internal class SingleDynamicAppManager constructor(appContext: Context,
 
     override fun getDefaultActivityClassName(): String? = defaultActivityClassName
 
-    override fun initialize() {
-        val currentAppFamily = preferences.getString(DynamicAppManagerPrefs.appFamilyKey, "")
-        failedToggleAttemptCount = preferences.getInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, 0)
+    override fun initialize(progress: ProgressCallback?) {
+        val state = stateStore.read()
+        val currentAppFamily = state.appFamily ?: ""
+        failedToggleAttemptCount = state.failedToggleAttemptCount
 
         Log.d(TAG, "STUFFING -- Initializing with state: " +
                 "currentAppFamily=$currentAppFamily, " +
@@ -31,19 +34,20 @@ internal class SingleDynamicAppManager constructor(appContext: Context,
                 "failedToggleAttemptCount=$failedToggleAttemptCount")
 
         if (currentAppFamily != applicationFamily && failedToggleAttemptCount < MAX_FAILED_ATTEMPT_COUNT) {
-            preferences.edit()
-                    .putInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, failedToggleAttemptCount + 1)
-                    .commit()
-
-            appComponentModifier.resetAllComponents(TAG)
-
-            preferences.edit()
-                    .putString(DynamicAppManagerPrefs.appFamilyKey, applicationFamily)
-                    .putString(DynamicAppManagerPrefs.expectedAppFamilyKey, applicationFamily)
-                    .putInt(DynamicAppManagerPrefs.previousVersionKey, appVersionCode)
-                    .putInt(DynamicAppManagerPrefs.failedToggleAttemptCountKey, 0)
-                    .putString(DynamicAppManagerPrefs.previousAppFamilyKey, currentAppFamily)
-                    .commit()
+            stateStore.update {
+                it.copy(failedToggleAttemptCount = failedToggleAttemptCount + 1, appliedComponents = null)
+            }
+
+            appComponentModifier.resetAllComponents(TAG, progress)
+
+            stateStore.update {
+                it.copy(appFamily = applicationFamily,
+                        expectedAppFamily = applicationFamily,
+                        previousVersion = appVersionCode,
+                        failedToggleAttemptCount = 0,
+                        previousAppFamily = currentAppFamily,
+                        apkFingerprint = apkFingerprint)
+            }
         }
     }
 
@@ -53,6 +57,13 @@ internal class SingleDynamicAppManager constructor(appContext: Context,
 
     override fun switchToAppFamily(appFamily: String, useSwitchActivity: Boolean, launchIntent: Intent?) { }
 
+    override fun switchToAppFamilyAsync(appFamily: String,
+                                        useSwitchActivity: Boolean,
+                                        launchIntent: Intent?,
+                                        listener: DynamicAppOperationListener?): DynamicAppOperation {
+        return runAsync(listener) { }
+    }
+
     override fun hasPendingAppFamilyChangeSignal() = false
 
     override fun consumePendingAppFamilyChangeSignal() { }
@@ -0,0 +1,39 @@
+package com.snap.stuffing.lib
+
+/**
+ * The number of components written between two checkpoints of a switch. A checkpoint is a single durable write of the
+ * [DynamicAppState], which costs about as much as a few component writes on API levels below 33, so this bounds the
+ * components written again after a crash without noticeably slowing down the switch.
+ */
+internal const val SWITCH_CHECKPOINT_INTERVAL = 256
+
+/**
+ * The progress of a switch, recorded in the [DynamicAppState] before its first component is written and then every
+ * [SWITCH_CHECKPOINT_INTERVAL] components, so that the next [MultiDynamicAppManager.initialize] can resume a switch
+ * interrupted by the death of the process toward the same app family.
+ *
+ * Since the state of every component is a pure function of the target, the components written after the last
+ * checkpoint are simply written again when resuming.
+ */
+internal data class SwitchCheckpoint(
+        /**
+         * The app family being switched to.
+         */
+        val appFamily: String,
+        /**
+         * The [SwitchPlan.previousTarget] of the switch, or null if its plan was computed by reading every component,
+         * in which case the [cursor] can't be used to resume it.
+         */
+        val previousTarget: String?,
+        /**
+         * True if only the critical components of the plan are written, the others being deferred.
+         */
+        val deferNonCritical: Boolean,
+        /**
+         * Identifies the plan that the [cursor] refers to, see [AppComponentModifier.checkpointSwitch].
+         */
+        val planId: Int,
+        /**
+         * The number of components of the plan known to be written.
+         */
+        val cursor: Int = 0)
@@ -0,0 +1,152 @@
+package com.snap.stuffing.lib
+
+import android.content.Intent
+import android.content.SharedPreferences
+
+/**
+ * Upper bounds, in milliseconds, of the latency bins of the [SwitchLatencyHistory].
+ */
+private val LATENCY_BIN_UPPER_BOUNDS_MILLISECONDS = longArrayOf(
+        250, 500, 750, 1000, 1500, 2000, 3000, 4000, 6000, 8000, 11000)
+
+/**
+ * The number of buckets of changed component counts: unknown, then powers of two up to 256 and more.
+ */
+private const val CHANGED_COMPONENT_BUCKET_COUNT = 10
+
+/**
+ * The minimum number of samples needed in a bucket before its history is used to derive a timeout.
+ */
+private const val MIN_SAMPLE_COUNT = 5
+
+/**
+ * The number of samples kept in a bucket. Once exceeded, the counts of the bucket are halved, so that old samples age
+ * out.
+ */
+private const val MAX_SAMPLE_COUNT = 64
+
+/**
+ * The percentile of the observed latencies used to derive the timeout.
+ */
+private const val TIMEOUT_PERCENTILE = 0.95
+
+/**
+ * Extra time given on top of the observed latency percentile.
+ */
+private const val TIMEOUT_MARGIN_MILLISECONDS = 500L
+
+internal const val MIN_TOGGLE_TIMEOUT_MILLISECONDS = 2 * 1000L
+
+/**
+ * 11 second timeout. The PACKAGE_CHANGED intent should be received within 10s based on the constant in PackageManager,
+ * so this is used when there is not enough history, and as an upper bound otherwise.
+ */
+internal const val MAX_TOGGLE_TIMEOUT_MILLISECONDS = 11 * 1000L
+
+/**
+ * A small persisted histogram of how long it took to receive the [Intent.ACTION_PACKAGE_CHANGED] broadcast after
+ * switching app families on this device, bucketed by the number of changed components.
+ *
+ * Used by the [PackageChangedWaiter] to derive its timeout from a high percentile of the observed latencies, rather than
+ * always waiting for the worst case. Waits that timed out are counted apart from the latencies, since their actual
+ * latency is unknown: when they exceed the share of samples above the percentile, the maximum timeout is used again.
+ * Each bucket keeps at most [MAX_SAMPLE_COUNT] samples, halving its counts when full, so the timeout follows changes in
+ * the device's behavior.
+ */
+internal class SwitchLatencyHistory(private val preferences: SharedPreferences) {
+
+    /**
+     * Returns the timeout to use when waiting for the broadcast after changing [changedComponentCount] components. The
+     * count is negative if unknown.
+     */
+    fun timeoutMillis(changedComponentCount: Int): Long {
+        val bucket = bucketOf(changedComponentCount)
+        val bins = readBins(bucket)
+        val sampleCount = bins.sum()
+        val timeoutCount = readTimeoutCount(bucket)
+        if (sampleCount < MIN_SAMPLE_COUNT || timeoutCount > (sampleCount + timeoutCount) * (1 - TIMEOUT_PERCENTILE)) {
+            return MAX_TOGGLE_TIMEOUT_MILLISECONDS
+        }
+
+        val percentileRank = Math.ceil(sampleCount * TIMEOUT_PERCENTILE).toInt()
+        var cumulativeCount = 0
+        var percentileUpperBound = MAX_TOGGLE_TIMEOUT_MILLISECONDS
+        for (i in bins.indices) {
+            cumulativeCount += bins[i]
+            if (cumulativeCount >= percentileRank) {
+                percentileUpperBound = LATENCY_BIN_UPPER_BOUNDS_MILLISECONDS[i]
+                break
+            }
+        }
+
+        return Math.min(MAX_TOGGLE_TIMEOUT_MILLISECONDS,
+                Math.max(MIN_TOGGLE_TIMEOUT_MILLISECONDS, percentileUpperBound + TIMEOUT_MARGIN_MILLISECONDS))
+    }
+
+    /**
+     * Records an observed broadcast latency.
+     */
+    fun record(changedComponentCount: Int, latencyMillis: Long) {
+        val bucket = bucketOf(changedComponentCount)
+        val bins = readBins(bucket)
+
+        var bin = LATENCY_BIN_UPPER_BOUNDS_MILLISECONDS.indexOfFirst { latencyMillis <= it }
+        if (bin < 0) bin = bins.size - 1
+        bins[bin]++
+
+        write(bucket, bins, readTimeoutCount(bucket))
+    }
+
+    /**
+     * Records a wait that timed out before the broadcast was received.
+     */
+    fun recordTimeout(changedComponentCount: Int) {
+        val bucket = bucketOf(changedComponentCount)
+        write(bucket, readBins(bucket), readTimeoutCount(bucket) + 1)
+    }
+
+    private fun write(bucket: Int, bins: IntArray, timeoutCount: Int) {
+        var agedTimeoutCount = timeoutCount
+        if (bins.sum() + timeoutCount > MAX_SAMPLE_COUNT) {
+            for (i in bins.indices) {
+                bins[i] /= 2
+            }
+            agedTimeoutCount /= 2
+        }
+
+        preferences.edit()
+                .putString(DynamicAppManagerPrefs.latencyBucketKeyPrefix + bucket, bins.joinToString(","))
+                .putInt(DynamicAppManagerPrefs.latencyTimeoutCountKeyPrefix + bucket, agedTimeoutCount)
+                .apply()
+    }
+
+    private fun readTimeoutCount(bucket: Int): Int {
+        return preferences.getInt(DynamicAppManagerPrefs.latencyTimeoutCountKeyPrefix + bucket, 0)
+    }
+
+    private fun readBins(bucket: Int): IntArray {
+        val bins = IntArray(LATENCY_BIN_UPPER_BOUNDS_MILLISECONDS.size)
+        val value = preferences.getString(DynamicAppManagerPrefs.latencyBucketKeyPrefix + bucket, null) ?: return bins
+
+        val counts = value.split(',')
+        if (counts.size != bins.size) {
+            return bins
+        }
+        for (i in bins.indices) {
+            bins[i] = counts[i].toIntOrNull() ?: 0
+        }
+        return bins
+    }
+
+    private fun bucketOf(changedComponentCount: Int): Int {
+        if (changedComponentCount <= 0) return 0
+
+        var bucket = 1
+        var bound = 1
+        while (changedComponentCount > bound && bucket < CHANGED_COMPONENT_BUCKET_COUNT - 1) {
+            bound *= 2
+            bucket++
+        }
+        return bucket
+    }
+}
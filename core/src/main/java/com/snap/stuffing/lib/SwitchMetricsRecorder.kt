@@ -0,0 +1,89 @@
+package com.snap.stuffing.lib
+
+import android.os.Bundle
+import android.os.SystemClock
+import com.snap.stuffing.api.SwitchMetrics
+
+private const val KEY_FROM_APP_FAMILY = "fromAppFamily"
+private const val KEY_TO_APP_FAMILY = "toAppFamily"
+private const val KEY_TIMESTAMPS = "timestamps"
+private const val KEY_COMPONENTS_SCANNED = "componentsScanned"
+private const val KEY_IPC_COUNT = "ipcCount"
+private const val KEY_COMPONENTS_CHANGED = "componentsChanged"
+private const val KEY_TIMED_OUT = "timedOut"
+
+/**
+ * Records the [SwitchMetrics] of a switch as it goes through the process that started it, the [AppSwitchActivity]
+ * process and the new process. The recorder is carried from one process to the next as a [Bundle] extra of the
+ * relaunch [android.content.Intent], keyed by [KEY_SWITCH_METRICS].
+ */
+internal class SwitchMetricsRecorder(
+        val fromAppFamily: String,
+        val toAppFamily: String,
+        private val timestamps: LongArray = LongArray(SwitchMetrics.PHASE_COUNT) { -1L }) {
+
+    var componentsScanned = 0
+    var ipcCount = 0
+    var componentsChanged = 0
+    var timedOut = false
+
+    /**
+     * Records the current time for one of the [SwitchMetrics] phases.
+     */
+    fun mark(phase: Int) {
+        timestamps[phase] = SystemClock.elapsedRealtime()
+    }
+
+    /**
+     * Records a timestamp taken earlier for one of the [SwitchMetrics] phases.
+     */
+    fun mark(phase: Int, elapsedRealtime: Long) {
+        timestamps[phase] = elapsedRealtime
+    }
+
+    /**
+     * Returns the timestamp recorded for one of the [SwitchMetrics] phases, or -1 if that phase wasn't reached.
+     */
+    fun timestamp(phase: Int): Long = timestamps[phase]
+
+    fun toBundle(): Bundle {
+        return Bundle().apply {
+            putString(KEY_FROM_APP_FAMILY, fromAppFamily)
+            putString(KEY_TO_APP_FAMILY, toAppFamily)
+            putLongArray(KEY_TIMESTAMPS, timestamps)
+            putInt(KEY_COMPONENTS_SCANNED, componentsScanned)
+            putInt(KEY_IPC_COUNT, ipcCount)
+            putInt(KEY_COMPONENTS_CHANGED, componentsChanged)
+            putBoolean(KEY_TIMED_OUT, timedOut)
+        }
+    }
+
+    fun toMetrics(): SwitchMetrics {
+        return SwitchMetrics(fromAppFamily, toAppFamily, timestamps, componentsScanned, ipcCount, componentsChanged,
+                timedOut)
+    }
+
+    companion object {
+        const val KEY_SWITCH_METRICS = "SWITCH_METRICS"
+
+        /**
+         * Restores a recorder from a [Bundle] created by [toBundle]. Returns null if the bundle is missing or invalid.
+         */
+        fun fromBundle(bundle: Bundle?): SwitchMetricsRecorder? {
+            if (bundle == null) return null
+
+            val timestamps = bundle.getLongArray(KEY_TIMESTAMPS)
+            if (timestamps == null || timestamps.size != SwitchMetrics.PHASE_COUNT) return null
+
+            return SwitchMetricsRecorder(
+                    bundle.getString(KEY_FROM_APP_FAMILY) ?: "",
+                    bundle.getString(KEY_TO_APP_FAMILY) ?: "",
+                    timestamps).apply {
+                componentsScanned = bundle.getInt(KEY_COMPONENTS_SCANNED)
+                ipcCount = bundle.getInt(KEY_IPC_COUNT)
+                componentsChanged = bundle.getInt(KEY_COMPONENTS_CHANGED)
+                timedOut = bundle.getBoolean(KEY_TIMED_OUT)
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.snap.stuffing.lib
+
+import android.app.Activity
+import android.app.Application
+import android.os.Build
+import android.os.Bundle
+import android.os.Process
+import android.util.Log
+import com.snap.stuffing.api.SwitchMetrics
+import com.snap.stuffing.api.SwitchMetricsListener
+
+private const val TAG = "SwitchMetricsReporter"
+
+/**
+ * Reports the [SwitchMetrics] carried by the launch intent of the first activity created after a switch, then
+ * unregisters itself.
+ */
+internal class SwitchMetricsReporter(
+        private val application: Application,
+        private val listener: SwitchMetricsListener) : Application.ActivityLifecycleCallbacks {
+
+    fun register() {
+        application.registerActivityLifecycleCallbacks(this)
+    }
+
+    override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {
+        application.unregisterActivityLifecycleCallbacks(this)
+
+        val intent = activity.intent ?: return
+        val metrics = SwitchMetricsRecorder.fromBundle(
+                intent.getBundleExtra(SwitchMetricsRecorder.KEY_SWITCH_METRICS)) ?: return
+        // The extra is only meant for this process, don't leak it to the activity or report it twice
+        intent.removeExtra(SwitchMetricsRecorder.KEY_SWITCH_METRICS)
+
+        // A switch completed in the same process by a LiveAppSwapper doesn't start a new process
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+                Process.getStartElapsedRealtime() >= metrics.timestamp(SwitchMetrics.PHASE_SWITCH_START)) {
+            metrics.mark(SwitchMetrics.PHASE_NEW_PROCESS_START, Process.getStartElapsedRealtime())
+        }
+        metrics.mark(SwitchMetrics.PHASE_FIRST_ACTIVITY_CREATED)
+
+        val switchMetrics = metrics.toMetrics()
+        Log.d(TAG, "STUFFING -- Switch completed: $switchMetrics")
+        listener.onSwitchCompleted(switchMetrics)
+    }
+
+    override fun onActivityStarted(activity: Activity) { }
+
+    override fun onActivityResumed(activity: Activity) { }
+
+    override fun onActivityPaused(activity: Activity) { }
+
+    override fun onActivityStopped(activity: Activity) { }
+
+    override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle) { }
+
+    override fun onActivityDestroyed(activity: Activity) { }
+}
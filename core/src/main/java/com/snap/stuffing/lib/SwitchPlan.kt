@@ -0,0 +1,273 @@
+package com.snap.stuffing.lib
+
+/**
+ * Target used to reset every component to its state in the source manifest, rather than switching to an app family.
+ * This is the default state of every component, except for the components aligned at build time (see
+ * [ComponentTable.alignedFlags]), which were enabled in the source manifest.
+ */
+internal const val RESET_TARGET = "*"
+
+/**
+ * Target describing components that were never modified, which are all in their default state. Only used as the
+ * previous target of a plan, see [AppComponentModifier.planSwitchToAppFamily].
+ */
+internal const val MANIFEST_DEFAULTS_TARGET = "<manifest>"
+
+/**
+ * Component enabled states, with the same values as the PackageManager.COMPONENT_ENABLED_STATE_* constants.
+ */
+internal const val COMPONENT_STATE_DEFAULT = 0
+internal const val COMPONENT_STATE_ENABLED = 1
+internal const val COMPONENT_STATE_DISABLED = 2
+
+/**
+ * Target ids of the [RESET_TARGET] and the [MANIFEST_DEFAULTS_TARGET]. App family ids are positive or
+ * [NO_APP_FAMILY_ID], so they never match these values.
+ */
+private const val RESET_ID = -2
+private const val MANIFEST_DEFAULTS_ID = -3
+
+/**
+ * The components a [SwitchPlanner] includes in a [SwitchPlan].
+ */
+internal enum class PlanScope {
+    ALL,
+    CRITICAL,
+    NON_CRITICAL
+}
+
+/**
+ * An immutable plan of the component state changes needed to switch to an app family, or to reset all components.
+ * Computing a plan doesn't modify any component, so it can be used to estimate the cost of a switch ahead of time.
+ */
+class SwitchPlan internal constructor(
+        /**
+         * The lower-cased app family this plan switches to, or [RESET_TARGET] when resetting all components.
+         */
+        val target: String,
+        /**
+         * The target that was fully applied when this plan was computed, or null if it was unknown and the plan was
+         * computed by reading the state of every component.
+         */
+        val previousTarget: String?,
+        internal val table: ComponentTable,
+        internal val positions: IntArray,
+        internal val states: IntArray,
+        internal val criticalFlags: BooleanArray) {
+
+    /**
+     * The number of components changed by this plan.
+     */
+    val size: Int
+        get() = positions.size
+
+    /**
+     * True if the plan was computed by reading the state of every component.
+     */
+    val fullScan: Boolean
+        get() = previousTarget == null
+
+    /**
+     * True if the target was already fully applied, in which case executing this plan is a no-op.
+     */
+    val alreadyApplied: Boolean
+        get() = previousTarget == target
+
+    val componentsToEnable: List<String> by lazy { componentsInState(COMPONENT_STATE_ENABLED) }
+
+    val componentsToDisable: List<String> by lazy { componentsInState(COMPONENT_STATE_DISABLED) }
+
+    /**
+     * Components returned to their default manifest state.
+     */
+    val componentsToReset: List<String> by lazy { componentsInState(COMPONENT_STATE_DEFAULT) }
+
+    /**
+     * The number of components changed by this plan, for each component type.
+     */
+    val countsByType: Map<ComponentType, Int> by lazy {
+        val counts = IntArray(ComponentType.values().size)
+        for (position in positions) {
+            counts[table.types[position].ordinal]++
+        }
+        ComponentType.values().associate { it to counts[it.ordinal] }
+    }
+
+    /**
+     * Returns the subset of this plan with only the critical, or non-critical, components.
+     */
+    internal fun partition(critical: Boolean): SwitchPlan {
+        var count = 0
+        for (flag in criticalFlags) {
+            if (flag == critical) count++
+        }
+
+        val subsetPositions = IntArray(count)
+        val subsetStates = IntArray(count)
+        var i = 0
+        for (j in positions.indices) {
+            if (criticalFlags[j] == critical) {
+                subsetPositions[i] = positions[j]
+                subsetStates[i] = states[j]
+                i++
+            }
+        }
+        return SwitchPlan(target, previousTarget, table, subsetPositions, subsetStates, BooleanArray(count) { critical })
+    }
+
+    /**
+     * Returns this plan without its first [count] components.
+     */
+    internal fun drop(count: Int): SwitchPlan {
+        if (count <= 0) return this
+
+        val from = Math.min(count, size)
+        return SwitchPlan(target, previousTarget, table, positions.copyOfRange(from, size),
+                states.copyOfRange(from, size), criticalFlags.copyOfRange(from, size))
+    }
+
+    private fun componentsInState(state: Int): List<String> {
+        return positions.indices.filter { states[it] == state }.map { table.names[positions[it]] }
+    }
+
+    override fun toString(): String {
+        return "SwitchPlan(target=$target, previousTarget=$previousTarget, enable=${componentsToEnable.size}, " +
+                "disable=${componentsToDisable.size}, reset=${componentsToReset.size}, countsByType=$countsByType)"
+    }
+}
+
+/**
+ * Computes [SwitchPlan]s against a [ComponentTable].
+ *
+ * Components without appFamilies use their default manifest state. Launcher aliases (see
+ * [ComponentTable.launcherForFamilyMasks]) are only enabled for their app families when [launcherAliasRouting] is
+ * enabled, in which case the [dynamicLaunchActivityName] is disabled for app families that have a launcher alias.
+ *
+ * When resetting, every component returns to its state in the source manifest. That is its default state, except for
+ * the components aligned at build time (see [ComponentTable.alignedFlags]): alignment only disables components that
+ * were enabled in the source manifest, so these are explicitly enabled.
+ *
+ * States are compared by their effective value: the default state of an aligned component is its state for the
+ * [ComponentTable.alignedAppFamily], so switching to that app family from the manifest defaults doesn't write it, and
+ * resetting it doesn't write it either when it's already enabled.
+ */
+internal class SwitchPlanner(
+        val table: ComponentTable,
+        private val launcherAliasRouting: Boolean,
+        dynamicLaunchActivityName: String) {
+
+    private val dynamicLaunchActivityPosition = table.names.indexOf(dynamicLaunchActivityName)
+
+    private val alignedId = table.alignedAppFamily?.let { table.families.idOf(it) } ?: NO_APP_FAMILY_ID
+
+    /**
+     * The [ComponentTable.fingerprint] combined with the routing mode, since target states depend on both.
+     */
+    val fingerprint: Int = 31 * table.fingerprint + (if (launcherAliasRouting) 1 else 0)
+
+    fun isCritical(position: Int): Boolean {
+        return table.isCritical(position) || position == dynamicLaunchActivityPosition
+    }
+
+    /**
+     * Plans the changes needed to move the components in [scope] from the [previousTarget] to the [target]. When the
+     * [previousTarget] is unknown, [currentState] is used to read the state of every component in [scope].
+     */
+    fun plan(target: String, previousTarget: String?, scope: PlanScope, currentState: (Int) -> Int): SwitchPlan {
+        val targetId = targetId(target)
+        val previousTargetId = if (previousTarget == null) NO_APP_FAMILY_ID else targetId(previousTarget)
+
+        var positions = IntArray(16)
+        var states = IntArray(16)
+        var count = 0
+
+        if (previousTarget != target) {
+            for (position in 0 until table.size) {
+                val critical = isCritical(position)
+                if ((scope == PlanScope.CRITICAL && !critical) || (scope == PlanScope.NON_CRITICAL && critical)) {
+                    continue
+                }
+
+                val state = targetState(position, targetId)
+                val previousState = if (previousTarget == null) {
+                    currentState(position)
+                } else {
+                    targetState(position, previousTargetId)
+                }
+
+                if (effectiveState(position, state) != effectiveState(position, previousState)) {
+                    if (count == positions.size) {
+                        positions = positions.copyOf(count * 2)
+                        states = states.copyOf(count * 2)
+                    }
+                    positions[count] = position
+                    states[count] = state
+                    count++
+                }
+            }
+        }
+
+        val criticalFlags = BooleanArray(count)
+        for (i in 0 until count) {
+            criticalFlags[i] = isCritical(positions[i])
+        }
+        return SwitchPlan(target, previousTarget, table, positions.copyOf(count), states.copyOf(count), criticalFlags)
+    }
+
+    /**
+     * The [state] of the component at [position], with the default state resolved to its aligned manifest state when
+     * known.
+     */
+    fun effectiveState(position: Int, state: Int): Int {
+        if (state != COMPONENT_STATE_DEFAULT || alignedId < 0 || !table.alignedFlags[position]) {
+            return state
+        }
+        return targetState(position, alignedId)
+    }
+
+    /**
+     * The app family id of the [target], or an id matching no app family for the [RESET_TARGET] and the
+     * [MANIFEST_DEFAULTS_TARGET].
+     */
+    fun targetId(target: String): Int {
+        return when (target) {
+            RESET_TARGET -> RESET_ID
+            MANIFEST_DEFAULTS_TARGET -> MANIFEST_DEFAULTS_ID
+            else -> table.families.idOf(target)
+        }
+    }
+
+    /**
+     * The enabled state of the component at [position] for the [targetId].
+     */
+    fun targetState(position: Int, targetId: Int): Int {
+        if (targetId == MANIFEST_DEFAULTS_ID) {
+            return COMPONENT_STATE_DEFAULT
+        }
+        if (targetId == RESET_ID) {
+            return if (alignedId >= 0 && table.alignedFlags[position]) {
+                COMPONENT_STATE_ENABLED
+            } else {
+                COMPONENT_STATE_DEFAULT
+            }
+        }
+
+        if (table.hasAnyFamily(table.launcherForFamilyMasks, position)) {
+            return if (launcherAliasRouting && table.hasFamily(table.launcherForFamilyMasks, position, targetId)) {
+                COMPONENT_STATE_ENABLED
+            } else {
+                COMPONENT_STATE_DISABLED
+            }
+        }
+
+        if (position == dynamicLaunchActivityPosition && launcherAliasRouting && table.hasLauncherAlias(targetId)) {
+            return COMPONENT_STATE_DISABLED
+        }
+
+        return when {
+            !table.hasAnyFamily(table.familyMasks, position) -> COMPONENT_STATE_DEFAULT
+            table.hasFamily(table.familyMasks, position, targetId) -> COMPONENT_STATE_ENABLED
+            else -> COMPONENT_STATE_DISABLED
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.snap.stuffing.bindings
+
+import android.app.Activity
+import android.app.Application
+import android.app.Service
+import android.content.BroadcastReceiver
+import android.content.ContentProvider
+import android.content.res.Configuration
+import com.snap.stuffing.api.exopackage.ApplicationLike
+import com.snap.stuffing.api.exopackage.LiveSwappableApplicationLike
+import dagger.android.AndroidInjector
+import dagger.android.HasActivityInjector
+import dagger.android.HasBroadcastReceiverInjector
+import dagger.android.HasContentProviderInjector
+import dagger.android.HasServiceInjector
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito.mock
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val THREAD_COUNT = 8
+private const val INJECTIONS_PER_THREAD = 20_000
+
+class DelegatingApplicationLikeTest {
+
+    private val application = mock(Application::class.java)
+
+    @Test
+    fun testDelegateIsCreatedOnceUnderContention() {
+        val subject = TestDelegatingApplicationLike(application)
+
+        runConcurrently { thread ->
+            (0 until INJECTIONS_PER_THREAD).all {
+                val injector = if ((thread + it) % 2 == 0) {
+                    subject.serviceInjector()
+                } else {
+                    subject.broadcastReceiverInjector()
+                }
+                injector != null
+            }
+        }
+
+        Assert.assertEquals(1, subject.createCount.get())
+    }
+
+    @Test
+    fun testInjectorsAreCachedOnceAvailable() {
+        val delegate = TestApplicationLike()
+        val subject = TestDelegatingApplicationLike(application, listOf(delegate))
+
+        // Not injected yet, e.g. a content provider created before Application.onCreate()
+        Assert.assertNull(subject.contentProviderInjector())
+
+        subject.onCreate()
+        val injector = subject.contentProviderInjector()
+        Assert.assertNotNull(injector)
+        Assert.assertSame(injector, subject.contentProviderInjector())
+        Assert.assertEquals(2, delegate.contentProviderInjectorCount.get())
+    }
+
+    @Test
+    fun testConcurrentReadersNeverSeeNullOrStaleInjectors() {
+        val previous = TestApplicationLike()
+        val next = TestApplicationLike()
+        val subject = TestDelegatingApplicationLike(application, listOf(previous, next))
+        subject.onCreate()
+        val previousInjector = previous.readyServiceInjector
+        val nextInjector = next.readyServiceInjector
+
+        // Once a reader saw the injector of the new delegate, it must never see the previous one again
+        runConcurrently { thread ->
+            var sawNext = false
+            for (i in 0 until INJECTIONS_PER_THREAD) {
+                if (thread == 0 && i == INJECTIONS_PER_THREAD / 2) {
+                    subject.swapToAppFamily("next", null)
+                }
+
+                val injector = subject.serviceInjector()
+                if (injector === nextInjector) {
+                    sawNext = true
+                } else if (injector !== previousInjector || sawNext) {
+                    return@runConcurrently false
+                }
+            }
+            true
+        }
+
+        Assert.assertSame(nextInjector, subject.serviceInjector())
+    }
+
+    /**
+     * Runs the [reader] on each of [THREAD_COUNT] threads started together, and asserts that it returned true on all of
+     * them.
+     */
+    private fun runConcurrently(reader: (Int) -> Boolean) {
+        val executor = Executors.newFixedThreadPool(THREAD_COUNT)
+        val start = CountDownLatch(1)
+        val done = CountDownLatch(THREAD_COUNT)
+        val failureCount = AtomicInteger()
+
+        for (thread in 0 until THREAD_COUNT) {
+            executor.execute {
+                start.await()
+                if (!reader(thread)) failureCount.incrementAndGet()
+                done.countDown()
+            }
+        }
+
+        start.countDown()
+        Assert.assertTrue(done.await(1, TimeUnit.MINUTES))
+        executor.shutdown()
+
+        Assert.assertEquals(0, failureCount.get())
+    }
+
+    /**
+     * Creates the [delegates] in order, the last one being reused once all were created.
+     */
+    private class TestDelegatingApplicationLike(
+            application: Application,
+            private val delegates: List<TestApplicationLike> = listOf(TestApplicationLike().apply { onCreate() })
+    ) : DelegatingApplicationLike(application) {
+
+        val createCount = AtomicInteger()
+
+        override fun createApplication(): ApplicationLike {
+            val index = createCount.getAndIncrement()
+            return delegates[Math.min(index, delegates.size - 1)]
+        }
+    }
+
+    /**
+     * A delegate whose injectors are only available once [onCreate] is called, like a Dagger application.
+     */
+    private class TestApplicationLike : LiveSwappableApplicationLike,
+            HasActivityInjector,
+            HasBroadcastReceiverInjector,
+            HasServiceInjector,
+            HasContentProviderInjector {
+
+        val contentProviderInjectorCount = AtomicInteger()
+
+        @Volatile private var created = false
+
+        private val activityInjector = AndroidInjector<Activity> { }
+        private val broadcastReceiverInjector = AndroidInjector<BroadcastReceiver> { }
+        val readyServiceInjector = AndroidInjector<Service> { }
+        private val contentProviderInjector = AndroidInjector<ContentProvider> { }
+
+        override fun onCreate() {
+            created = true
+        }
+
+        override fun onLowMemory() { }
+
+        override fun onTrimMemory(level: Int) { }
+
+        override fun onTerminate() { }
+
+        override fun onTearDown() { }
+
+        override fun onConfigurationChanged(newConfig: Configuration?) { }
+
+        override fun getSystemService(name: String?): Any? = null
+
+        override fun activityInjector(): AndroidInjector<Activity>? = if (created) activityInjector else null
+
+        override fun broadcastReceiverInjector(): AndroidInjector<BroadcastReceiver>? =
+                if (created) broadcastReceiverInjector else null
+
+        override fun serviceInjector(): AndroidInjector<Service>? = if (created) readyServiceInjector else null
+
+        override fun contentProviderInjector(): AndroidInjector<ContentProvider>? {
+            contentProviderInjectorCount.incrementAndGet()
+            return if (created) contentProviderInjector else null
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.snap.stuffing.bindings
+
+import android.app.Activity
+import android.app.Application
+import android.app.Service
+import android.content.BroadcastReceiver
+import android.content.ContentProvider
+import android.content.res.Configuration
+import com.snap.stuffing.api.exopackage.ApplicationLike
+import dagger.android.AndroidInjector
+import dagger.android.HasActivityInjector
+import dagger.android.HasBroadcastReceiverInjector
+import dagger.android.HasContentProviderInjector
+import dagger.android.HasServiceInjector
+import org.mockito.Mockito.mock
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Group
+import org.openjdk.jmh.annotations.GroupThreads
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares concurrent service and receiver injection through [DelegatingApplicationLike], which reads its delegate and
+ * cached injectors from volatile fields, with the previous dispatch, which acquired the monitor of a synchronized
+ * getApplication() and cast the delegate on every injection.
+ *
+ * In each group, half of the threads inject services while the other half inject receivers, like a process starting
+ * services while it receives broadcasts.
+ *
+ * This is not a unit test: it's run on the JVM by the jmh task along with the SwitchPlanningBenchmark (see
+ * benchmarks.gradle).
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class InjectionBenchmark {
+
+    private lateinit var delegating: DelegatingApplicationLike
+    private lateinit var synchronizedDispatch: SynchronizedDispatch
+
+    @Setup
+    fun setUp() {
+        val delegate = BenchmarkApplicationLike()
+        delegating = object : DelegatingApplicationLike(mock(Application::class.java)) {
+            override fun createApplication(): ApplicationLike = delegate
+        }
+        delegating.onCreate()
+        synchronizedDispatch = SynchronizedDispatch(delegate)
+    }
+
+    @Benchmark
+    @Group("delegating")
+    @GroupThreads(4)
+    fun delegatingServiceInjector(): AndroidInjector<Service>? {
+        return delegating.serviceInjector()
+    }
+
+    @Benchmark
+    @Group("delegating")
+    @GroupThreads(4)
+    fun delegatingBroadcastReceiverInjector(): AndroidInjector<BroadcastReceiver>? {
+        return delegating.broadcastReceiverInjector()
+    }
+
+    @Benchmark
+    @Group("synchronizedDispatch")
+    @GroupThreads(4)
+    fun synchronizedServiceInjector(): AndroidInjector<Service>? {
+        return synchronizedDispatch.serviceInjector()
+    }
+
+    @Benchmark
+    @Group("synchronizedDispatch")
+    @GroupThreads(4)
+    fun synchronizedBroadcastReceiverInjector(): AndroidInjector<BroadcastReceiver>? {
+        return synchronizedDispatch.broadcastReceiverInjector()
+    }
+
+    /**
+     * The dispatch of [DelegatingApplicationLike] before its delegate and injectors were read without locking.
+     */
+    private class SynchronizedDispatch(private val delegate: ApplicationLike) {
+
+        @Synchronized
+        fun getApplication(): ApplicationLike = delegate
+
+        fun serviceInjector(): AndroidInjector<Service>? {
+            return (getApplication() as HasServiceInjector).serviceInjector()
+        }
+
+        fun broadcastReceiverInjector(): AndroidInjector<BroadcastReceiver>? {
+            return (getApplication() as HasBroadcastReceiverInjector).broadcastReceiverInjector()
+        }
+    }
+
+    private class BenchmarkApplicationLike : ApplicationLike,
+            HasActivityInjector,
+            HasBroadcastReceiverInjector,
+            HasServiceInjector,
+            HasContentProviderInjector {
+
+        private val activityInjector = AndroidInjector<Activity> { }
+        private val broadcastReceiverInjector = AndroidInjector<BroadcastReceiver> { }
+        private val serviceInjector = AndroidInjector<Service> { }
+        private val contentProviderInjector = AndroidInjector<ContentProvider> { }
+
+        override fun onCreate() { }
+
+        override fun onLowMemory() { }
+
+        override fun onTrimMemory(level: Int) { }
+
+        override fun onTerminate() { }
+
+        override fun onConfigurationChanged(newConfig: Configuration?) { }
+
+        override fun getSystemService(name: String?): Any? = null
+
+        override fun activityInjector(): AndroidInjector<Activity> = activityInjector
+
+        override fun broadcastReceiverInjector(): AndroidInjector<BroadcastReceiver> = broadcastReceiverInjector
+
+        override fun serviceInjector(): AndroidInjector<Service> = serviceInjector
+
+        override fun contentProviderInjector(): AndroidInjector<ContentProvider> = contentProviderInjector
+    }
+}
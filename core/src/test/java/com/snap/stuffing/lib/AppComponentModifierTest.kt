@@ -0,0 +1,117 @@
+package com.snap.stuffing.lib
+
+import android.content.Context
+import android.content.SharedPreferences
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.mock
+import java.io.BufferedReader
+import java.io.File
+import java.io.StringReader
+
+private const val FIRST_ACTIVITY = "com.snap.stuffing.test.FirstActivity"
+private const val SECOND_ACTIVITY = "com.snap.stuffing.test.SecondActivity"
+private const val DISABLED_SERVICE = "com.snap.stuffing.test.DisabledService"
+
+/**
+ * Runs the [AppComponentModifier] against an [InMemoryComponentStateStore] and a component index aligned with the
+ * "first" app family, where [DISABLED_SERVICE] is disabled in the source manifest and therefore not aligned.
+ */
+class AppComponentModifierTest {
+
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private val componentStateStore = InMemoryComponentStateStore()
+
+    private val stateStore by lazy {
+        DynamicAppStateStore(File(temporaryFolder.root, DynamicAppManagerPrefs.stateStoreFile))
+    }
+
+    private val table = ComponentTable.Builder()
+            .alignedAppFamily("first")
+            .add(ComponentType.ACTIVITY, FIRST_ACTIVITY, "first", "first", null, critical = false, aligned = true)
+            .add(ComponentType.ACTIVITY, SECOND_ACTIVITY, "second", "second", null, critical = false, aligned = true)
+            .add(ComponentType.SERVICE, DISABLED_SERVICE, "first", null, null, critical = false)
+            .build()
+
+    @Test
+    fun testSwitchToAlignedAppFamilyFromManifestDefaults() {
+        val modifier = newModifier()
+
+        val plan = modifier.planSwitchToAppFamily("first", fromManifestDefaults = true)
+
+        // The aligned components are already in their state for the app family
+        Assert.assertEquals(listOf(DISABLED_SERVICE), plan.componentsToEnable)
+        Assert.assertTrue(plan.componentsToDisable.isEmpty())
+    }
+
+    @Test
+    fun testResetRestoresSourceManifestState() {
+        val modifier = newModifier()
+        val plan = modifier.planSwitchToAppFamily("first")
+        modifier.executeSwitch(plan, modifier.checkpointSwitch("first", plan, false), "test")
+        stateStore.update { it.copy(appliedComponents = modifier.appliedComponents(plan, false)) }
+
+        modifier.resetAllComponents("test")
+
+        // The aligned components are enabled in the source manifest, which FIRST_ACTIVITY already is by default, and
+        // the others are back to their default state
+        Assert.assertEquals(mapOf(SECOND_ACTIVITY to COMPONENT_STATE_ENABLED), componentStateStore.snapshot())
+        Assert.assertTrue(modifier.planResetAllComponents().alreadyApplied)
+    }
+
+    @Test
+    fun testSwitchBetweenAppFamiliesBeyondFirst64() {
+        val index = syntheticComponentIndex(1000, 100, sharedEvery = 0)
+        val appFamiliesByName = index.lines()
+                .drop(1)
+                .filter { it.isNotEmpty() }
+                .map { it.split('\t') }
+                .associate { it[1] to it[2] }
+        val table = ComponentTable.parse(BufferedReader(StringReader(index)))
+        val planner = SwitchPlanner(table, false, DynamicLaunchActivity::class.java.name)
+
+        val plan = planner.plan("family99", "family70", PlanScope.ALL) {
+            throw IllegalStateException("No component state should be read")
+        }
+
+        Assert.assertEquals(2, table.maskWords)
+        Assert.assertEquals(appFamiliesByName.filterValues { it == "family99" }.keys.toList(), plan.componentsToEnable)
+        Assert.assertEquals(appFamiliesByName.filterValues { it == "family70" }.keys.toList(), plan.componentsToDisable)
+        Assert.assertEquals("$SYNTHETIC_COMPONENT_PACKAGE.Activity396",
+                table.names[table.findMainActivity(table.families.idOf("family99"))])
+    }
+
+    @Test
+    fun testBatchWritesAreCheckpointedEveryInterval() {
+        val index = syntheticComponentIndex(2000, 2, sharedEvery = 0)
+        val modifier = newModifier(ComponentTable.parse(BufferedReader(StringReader(index))))
+        val plan = modifier.planSwitchToAppFamily("family0", fromManifestDefaults = true)
+        val checkpoint = modifier.checkpointSwitch("family0", plan, false)
+
+        val cursors = ArrayList<Int>()
+        modifier.executeSwitch(plan, checkpoint, "test") { cursors.add(it.cursor) }
+
+        // Every batch but the last one is followed by a checkpoint
+        Assert.assertTrue(plan.size > 2 * BATCH_WRITE_SIZE)
+        Assert.assertEquals((1..(plan.size - 1) / BATCH_WRITE_SIZE).map { it * SWITCH_CHECKPOINT_INTERVAL }, cursors)
+    }
+
+    private fun newModifier(table: ComponentTable = this.table): AppComponentModifier {
+        val context = mock(Context::class.java)
+        `when`(context.getSharedPreferences(anyString(), anyInt())).thenReturn(mock(SharedPreferences::class.java))
+
+        return AppComponentModifier(
+                context,
+                launcherAliasRouting = false,
+                componentStateStore = componentStateStore,
+                loadComponentTable = { table },
+                stateStore = { stateStore },
+                appVersionCode = { 1 })
+    }
+}
@@ -0,0 +1,46 @@
+package com.snap.stuffing.lib
+
+/**
+ * A [ComponentStateStore] keeping component states in memory, which allows running switches in unit tests without any
+ * binder call. Components that were never written are in their default state.
+ */
+internal class InMemoryComponentStateStore(
+        override val supportsBatchWrites: Boolean = true
+) : ComponentStateStore {
+
+    private val states = HashMap<String, Int>()
+
+    /**
+     * Sets the state of the component named [className], as if it had been written by a previous process.
+     */
+    @Synchronized
+    fun seed(className: String, state: Int) {
+        if (state == COMPONENT_STATE_DEFAULT) {
+            states.remove(className)
+        } else {
+            states[className] = state
+        }
+    }
+
+    /**
+     * The class names and states of every component that is not in its default state.
+     */
+    @Synchronized
+    fun snapshot(): Map<String, Int> = HashMap(states)
+
+    @Synchronized
+    override fun getComponentEnabledSetting(className: String): Int {
+        return states[className] ?: COMPONENT_STATE_DEFAULT
+    }
+
+    override fun setComponentEnabledSettings(classNames: List<String>,
+                                             states: IntArray,
+                                             progress: ((writtenCount: Int, totalCount: Int) -> Unit)?) {
+        for (i in classNames.indices) {
+            seed(classNames[i], states[i])
+            if (!supportsBatchWrites || (i + 1) % BATCH_WRITE_SIZE == 0 || i + 1 == classNames.size) {
+                progress?.invoke(i + 1, classNames.size)
+            }
+        }
+    }
+}
@@ -1,17 +1,31 @@
 package com.snap.stuffing.lib
 
 import android.content.Context
-import com.snap.framework.developer.BuildConfigInfo
+import android.content.SharedPreferences
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
 import com.snap.stuffing.api.AppSwitchHook
 import com.snap.stuffing.api.DynamicAppConfig
 import org.junit.Assert
+import org.junit.Rule
 import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mockito.`when`
 import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.verifyZeroInteractions
+import java.io.File
 
 private const val TEST_EVENT = "test_event"
+private const val TEST_PACKAGE_NAME = "com.snap.stuffing.test"
 
 class MultiDynamicAppManagerTest {
 
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
     private val context = mock(Context::class.java)
 
     @Test
@@ -21,9 +35,39 @@ class MultiDynamicAppManagerTest {
             called = true
         }
         val config = DynamicAppConfig(mapOf(TEST_EVENT to runnable))
-        val subject = MultiDynamicAppManager(context, BuildConfigInfo(), "", config, AppSwitchHook { fromAppFamily, toAppFamily ->  })
+        val subject = MultiDynamicAppManager(context, "", config, AppSwitchHook { _, _ -> })
         subject.onEvent(TEST_EVENT)
 
         Assert.assertTrue(called)
     }
+
+    @Test
+    fun testSteadyStateInitializeMakesNoPackageManagerCalls() {
+        val filesDir = temporaryFolder.newFolder("files")
+        val apkFile = temporaryFolder.newFile("base.apk").apply { writeText("apk") }
+        val packageManager = mock(PackageManager::class.java)
+        `when`(context.packageName).thenReturn(TEST_PACKAGE_NAME)
+        `when`(context.packageManager).thenReturn(packageManager)
+        `when`(context.filesDir).thenReturn(filesDir)
+        `when`(context.applicationInfo).thenReturn(ApplicationInfo().apply { sourceDir = apkFile.path })
+        `when`(context.getSharedPreferences(anyString(), anyInt())).thenReturn(mock(SharedPreferences::class.java))
+
+        // The state left by a previous launch of the same APK
+        DynamicAppStateStore(File(filesDir, DynamicAppManagerPrefs.stateStoreFile)).write(DynamicAppState(
+                systemVersion = SYSTEM_VERSION,
+                appFamily = "second",
+                expectedAppFamily = "second",
+                previousAppFamily = "first",
+                previousVersion = 42,
+                apkFingerprint = computeApkFingerprint(apkFile)))
+
+        val subject = MultiDynamicAppManager(context, "first", DynamicAppConfig(emptyMap()), AppSwitchHook { _, _ -> })
+        subject.initialize()
+
+        Assert.assertEquals("second", subject.applicationFamily)
+        Assert.assertFalse(subject.hasPendingAppFamilyChangeSignal())
+        Assert.assertEquals(42, subject.appVersionCode)
+        verify(context, never()).packageManager
+        verifyZeroInteractions(packageManager)
+    }
 }
@@ -0,0 +1,574 @@
+package com.snap.stuffing.lib
+
+import android.content.Context
+import android.content.ContextWrapper
+import android.content.Intent
+import android.content.SharedPreferences
+import android.content.pm.ActivityInfo
+import android.content.pm.ComponentInfo
+import android.content.pm.PackageInfo
+import android.content.pm.ProviderInfo
+import android.content.pm.ServiceInfo
+import android.os.Bundle
+import com.jakewharton.processphoenix.ProcessPhoenix
+import com.snap.stuffing.api.AppSwitchHook
+import com.snap.stuffing.api.DynamicAppConfig
+import com.snap.stuffing.api.LiveAppSwapper
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import org.robolectric.annotation.Implementation
+import org.robolectric.annotation.Implements
+import org.robolectric.shadows.ShadowLooper
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val COMPONENT_COUNT = 5000
+private const val APP_FAMILY_COUNT = 4
+private const val DEFAULT_APP_FAMILY = "family0"
+private const val OTHER_APP_FAMILY = "family1"
+private const val VERSION_CODE = 42
+
+/**
+ * The layout of the [DynamicAppStateStore] file, whose sequence numbers count the state writes.
+ */
+private const val STATE_SLOT_SIZE = 1024
+private const val STATE_SLOT_MAGIC = 0x53545546
+
+/**
+ * Drives the dynamic app managers through first installs, cold starts, upgrades and switches against a generated
+ * manifest of [COMPONENT_COUNT] components, and checks the component state calls, preferences commits and state writes
+ * of each scenario against a budget. Component state calls go through the PackageManager, so on API levels below 33 each
+ * of them is a binder call in production.
+ *
+ * Switches are completed in-process by a [LiveAppSwapper], and process restarts are recorded by a
+ * [ShadowProcessPhoenix], since restarting the process would exit the test JVM.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], shadows = [SwitchBudgetTest.ShadowProcessPhoenix::class])
+class SwitchBudgetTest {
+
+    private val context = CountingContext(RuntimeEnvironment.application)
+
+    /**
+     * The type, class name, appFamilies and mainForAppFamilies of every generated component.
+     */
+    private val components = syntheticComponentIndex(COMPONENT_COUNT, APP_FAMILY_COUNT)
+            .lines()
+            .drop(1)
+            .filter { it.isNotEmpty() }
+            .map { it.split('\t') }
+
+    private val liveAppSwapper = RecordingLiveAppSwapper()
+
+    @Before
+    fun setUp() {
+        installSyntheticManifest()
+        ShadowProcessPhoenix.rebirthCount = 0
+    }
+
+    @Test
+    fun testFirstInstallOnlyWritesCriticalComponents() {
+        val manager = newManager()
+
+        val usage = measure(manager) { manager.initialize() }
+
+        // Only the StateTrackingService is read, since the other components are known to be in their default state
+        usage.assertReads(1)
+        usage.assertWrites(countFamilyComponents(critical = true))
+        usage.assertAtMost(commits = 0, stateWrites = 2 + checkpointCount(countFamilyComponents(critical = true)))
+        Assert.assertEquals(DEFAULT_APP_FAMILY, manager.applicationFamily)
+
+        val deferredUsage = measure(manager) { drainBackgroundExecutor(manager) }
+
+        deferredUsage.assertReads(0)
+        // The non-critical components, and the StateTrackingService
+        deferredUsage.assertWrites(countFamilyComponents(critical = false) + 1)
+        deferredUsage.assertAtMost(commits = 0, stateWrites = 1)
+    }
+
+    @Test
+    fun testSteadyStateColdStartMakesNoCalls() {
+        install()
+
+        val manager = newManager()
+        val usage = measure(manager) { manager.initialize() }
+
+        usage.assertReads(0)
+        usage.assertWrites(0)
+        usage.assertAtMost(commits = 0, stateWrites = 0)
+        Assert.assertEquals(DEFAULT_APP_FAMILY, manager.applicationFamily)
+    }
+
+    @Test
+    fun testVersionUpgradeScansOnceWithoutWrites() {
+        install()
+
+        val manager = newManager(appVersionCode = VERSION_CODE + 1)
+        val usage = measure(manager) { manager.initialize() }
+
+        usage.assertReads(COMPONENT_COUNT + 1)
+        usage.assertWrites(0)
+        usage.assertAtMost(commits = 0, stateWrites = 2)
+
+        val coldStartUsage = measure(newManager(appVersionCode = VERSION_CODE + 1)) { it.initialize() }
+        coldStartUsage.assertReads(0)
+        coldStartUsage.assertAtMost(commits = 0, stateWrites = 0)
+    }
+
+    @Test
+    fun testSwitchOnlyWritesComponentsThatDiffer() {
+        val manager = install()
+
+        val usage = measure(manager) { manager.switchToAppFamily(OTHER_APP_FAMILY, false, null) }
+
+        // No next initialize() writes the non-critical components of a switch completed in-process
+        val writeCount = countFamilyComponents(true, DEFAULT_APP_FAMILY, OTHER_APP_FAMILY) +
+                countFamilyComponents(false, DEFAULT_APP_FAMILY, OTHER_APP_FAMILY)
+        usage.assertReads(0)
+        usage.assertWrites(writeCount)
+        // The snapshot and main activity being recorded by the state writes starting and completing the switch
+        usage.assertAtMost(commits = 0, stateWrites = 2 + checkpointCount(writeCount))
+        Assert.assertFalse(manager.appComponentModifier.hasDeferredComponents())
+        Assert.assertTrue(manager.hasPendingAppFamilyChangeSignal())
+
+        // No PACKAGE_CHANGED broadcast is sent by Robolectric, so the swap happens once the wait times out
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+        Assert.assertEquals(listOf(OTHER_APP_FAMILY), liveAppSwapper.swappedAppFamilies)
+        Assert.assertEquals(OTHER_APP_FAMILY, manager.applicationFamily)
+
+        // The next cold start has nothing left to write, and reads the main activity cached by the switch
+        val mainActivity = manager.getDefaultActivityClassName()
+        val coldStartUsage = measure(newManager()) {
+            it.initialize()
+            drainBackgroundExecutor(it)
+            Assert.assertEquals(mainActivity, it.getDefaultActivityClassName())
+        }
+        coldStartUsage.assertWrites(0)
+        coldStartUsage.assertAtMost(commits = 0, stateWrites = 0)
+    }
+
+    @Test
+    fun testRepeatedSwitchToSameFamilyMakesNoCalls() {
+        val manager = install()
+        manager.switchToAppFamily(OTHER_APP_FAMILY, false, null)
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+
+        val usage = measure(manager) { manager.switchToAppFamily(OTHER_APP_FAMILY, false, null) }
+
+        usage.assertReads(0)
+        usage.assertWrites(0)
+        usage.assertAtMost(commits = 0, stateWrites = 0)
+
+        ShadowLooper.runUiThreadTasks()
+        Assert.assertEquals(listOf(OTHER_APP_FAMILY, OTHER_APP_FAMILY), liveAppSwapper.swappedAppFamilies)
+    }
+
+    @Test
+    fun testSynchronousSwitchRunsHookOnCallingThread() {
+        install()
+        var hookThread: Thread? = null
+        val manager = newManager(appSwitchHook = AppSwitchHook { _, _ -> hookThread = Thread.currentThread() })
+        manager.initialize()
+
+        manager.switchToAppFamily(OTHER_APP_FAMILY, false, null)
+
+        Assert.assertSame(Thread.currentThread(), hookThread)
+        Assert.assertEquals(OTHER_APP_FAMILY, manager.applicationFamily)
+    }
+
+    @Test
+    fun testSupersededSwitchMakesNoCalls() {
+        val manager = install()
+        val lastAppFamily = "family2"
+
+        // Hold the background thread, so that both switches are pending
+        val release = CountDownLatch(1)
+        manager.backgroundExecutor.execute { release.await() }
+
+        val usage = measure(manager) {
+            val superseded = manager.switchToAppFamilyAsync(OTHER_APP_FAMILY, false, null, null)
+            val last = manager.switchToAppFamilyAsync(lastAppFamily, false, null, null)
+            release.countDown()
+            drainBackgroundExecutor(manager)
+
+            Assert.assertTrue(superseded.isCancelled)
+            Assert.assertTrue(last.isDone)
+            Assert.assertFalse(last.isCancelled)
+        }
+
+        usage.assertReads(0)
+        usage.assertWrites(countFamilyComponents(true, DEFAULT_APP_FAMILY, lastAppFamily) +
+                countFamilyComponents(false, DEFAULT_APP_FAMILY, lastAppFamily))
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+        Assert.assertEquals(listOf(lastAppFamily), liveAppSwapper.swappedAppFamilies)
+        Assert.assertEquals(lastAppFamily, manager.applicationFamily)
+    }
+
+    @Test
+    fun testCrashDuringSwitchIsResumedOnNextColdStart() {
+        install()
+
+        // The process dies shortly after the first checkpoint of the switch
+        crashDuringSwitch(newManager(componentStateStore = CrashingComponentStateStore(
+                PackageManagerComponentStateStore(context), SWITCH_CHECKPOINT_INTERVAL + 10)))
+
+        val manager = newManager()
+        val usage = measure(manager) { manager.initialize() }
+
+        // The switch is planned again from the default family, and resumed from its checkpoint
+        // The switch was to be completed in-process, so none of its components are deferred
+        val writeCount = countFamilyComponents(true, DEFAULT_APP_FAMILY, OTHER_APP_FAMILY) +
+                countFamilyComponents(false, DEFAULT_APP_FAMILY, OTHER_APP_FAMILY)
+        usage.assertReads(0)
+        usage.assertWrites(writeCount - SWITCH_CHECKPOINT_INTERVAL)
+        usage.assertAtMost(commits = 0, stateWrites = 2 + checkpointCount(writeCount - SWITCH_CHECKPOINT_INTERVAL))
+        Assert.assertEquals(OTHER_APP_FAMILY, manager.applicationFamily)
+        Assert.assertTrue(manager.hasPendingAppFamilyChangeSignal())
+        Assert.assertEquals(0, manager.stateStore.read().failedToggleAttemptCount)
+        Assert.assertNull(manager.stateStore.read().switchCheckpoint)
+
+        // Providers of the default family were still running when they were disabled
+        Assert.assertEquals(1, ShadowProcessPhoenix.rebirthCount)
+    }
+
+    @Test
+    fun testRepeatedCrashesDuringSwitchRestoreDefaultFamily() {
+        install()
+        crashDuringSwitch(newManager(componentStateStore = CrashingComponentStateStore(
+                PackageManagerComponentStateStore(context), 1)))
+
+        // The resumed switches crash as well
+        repeat(MAX_RESUMED_ATTEMPT_COUNT) {
+            val resumingManager = newManager(componentStateStore = CrashingComponentStateStore(
+                    PackageManagerComponentStateStore(context), 1))
+            try {
+                resumingManager.initialize()
+                Assert.fail("The resumed switch should have crashed")
+            } catch (e: IllegalStateException) {
+                // Expected
+            }
+        }
+
+        val manager = newManager()
+        manager.initialize()
+
+        Assert.assertEquals(DEFAULT_APP_FAMILY, manager.applicationFamily)
+        Assert.assertEquals(0, manager.stateStore.read().failedToggleAttemptCount)
+        Assert.assertNull(manager.stateStore.read().switchCheckpoint)
+        Assert.assertTrue(liveAppSwapper.swappedAppFamilies.isEmpty())
+    }
+
+    @Test
+    fun testCrashDuringSwitchIsNotResumedAfterUpgrade() {
+        install()
+        crashDuringSwitch(newManager(componentStateStore = CrashingComponentStateStore(
+                PackageManagerComponentStateStore(context), SWITCH_CHECKPOINT_INTERVAL + 10)))
+
+        // The checkpoint was recorded for the previous app version, so the default app family is restored instead
+        val manager = newManager(appVersionCode = VERSION_CODE + 1)
+        manager.initialize()
+
+        Assert.assertEquals(DEFAULT_APP_FAMILY, manager.applicationFamily)
+        Assert.assertEquals(0, manager.stateStore.read().failedToggleAttemptCount)
+        Assert.assertNull(manager.stateStore.read().switchCheckpoint)
+    }
+
+    @Test
+    fun testSingleAppInitializeScansOnce() {
+        val manager = SingleDynamicAppManager(context, "$SYNTHETIC_COMPONENT_PACKAGE.Activity0", DEFAULT_APP_FAMILY)
+
+        val usage = measure(manager) { manager.initialize() }
+
+        usage.assertReads(COMPONENT_COUNT + 1)
+        usage.assertWrites(0)
+        // Starting the reset, recording the snapshot and completing the reset
+        usage.assertAtMost(commits = 0, stateWrites = 3)
+
+        val coldStartManager = SingleDynamicAppManager(
+                context, "$SYNTHETIC_COMPONENT_PACKAGE.Activity0", DEFAULT_APP_FAMILY)
+        val coldStartUsage = measure(coldStartManager) { it.initialize() }
+
+        coldStartUsage.assertReads(0)
+        coldStartUsage.assertWrites(0)
+        coldStartUsage.assertAtMost(commits = 0, stateWrites = 0)
+    }
+
+    private fun newManager(appVersionCode: Int = VERSION_CODE,
+                           componentStateStore: ComponentStateStore? = null,
+                           appSwitchHook: AppSwitchHook = AppSwitchHook { _, _ -> }): MultiDynamicAppManager {
+        val config = DynamicAppConfig(emptyMap(), appVersionCode = appVersionCode, liveAppSwapper = liveAppSwapper)
+        return MultiDynamicAppManager(
+                context, DEFAULT_APP_FAMILY, config, appSwitchHook, null, componentStateStore)
+    }
+
+    /**
+     * Initializes the first process after the install, including the deferred components.
+     */
+    private fun install(): MultiDynamicAppManager {
+        return newManager().apply {
+            initialize()
+            drainBackgroundExecutor(this)
+        }
+    }
+
+    /**
+     * Switches the [crashingManager] to the other app family, until its component state store crashes.
+     */
+    private fun crashDuringSwitch(crashingManager: MultiDynamicAppManager) {
+        crashingManager.initialize()
+        try {
+            crashingManager.switchToAppFamily(OTHER_APP_FAMILY, false, null)
+            Assert.fail("The switch should have crashed")
+        } catch (e: IllegalStateException) {
+            // Expected
+        }
+    }
+
+    private fun drainBackgroundExecutor(manager: BaseDynamicAppManager) {
+        manager.backgroundExecutor.submit { }.get()
+    }
+
+    /**
+     * Counts the generated components with an app family, which are the ones a switch writes, that are [critical] or
+     * not, and that belong to one of the [appFamilies] if any.
+     */
+    private fun countFamilyComponents(critical: Boolean, vararg appFamilies: String): Int {
+        return components.count { fields ->
+            val appFamily = fields[2]
+            val isCritical = fields[0] == ComponentType.PROVIDER.tag || fields[3].isNotEmpty()
+            appFamily.isNotEmpty() &&
+                    isCritical == critical &&
+                    (appFamilies.isEmpty() || appFamilies.contains(appFamily))
+        }
+    }
+
+    /**
+     * The number of checkpoints recorded while a switch writes [writeCount] components, each of which is a state write.
+     */
+    private fun checkpointCount(writeCount: Int): Int {
+        return (writeCount - 1) / SWITCH_CHECKPOINT_INTERVAL
+    }
+
+    private fun <T : BaseDynamicAppManager> measure(manager: T, block: (T) -> Unit): Usage {
+        val componentStateStore = manager.appComponentModifier.componentStateStore
+        val readsBefore = componentStateStore.ipcCount(ComponentStateOperation.READ)
+        val writesBefore = componentStateStore.ipcCount(ComponentStateOperation.WRITE)
+        val commitsBefore = context.commitCount.get()
+        val stateWritesBefore = stateSequence()
+
+        block(manager)
+
+        return Usage(componentStateStore.ipcCount(ComponentStateOperation.READ) - readsBefore,
+                componentStateStore.ipcCount(ComponentStateOperation.WRITE) - writesBefore,
+                context.commitCount.get() - commitsBefore,
+                stateSequence() - stateWritesBefore)
+    }
+
+    /**
+     * The sequence number of the last state written to the state file, which every successful write increments, or 0 if
+     * there is no state file yet.
+     */
+    private fun stateSequence(): Long {
+        val file = File(context.noBackupFilesDir, DynamicAppManagerPrefs.stateStoreFile)
+        if (!file.exists()) {
+            return 0
+        }
+
+        // Each slot starts with the "STUF" magic, the format version and the sequence number
+        val bytes = ByteBuffer.wrap(file.readBytes())
+        return (0 until bytes.capacity() / STATE_SLOT_SIZE)
+                .filter { bytes.getInt(it * STATE_SLOT_SIZE) == STATE_SLOT_MAGIC }
+                .map { bytes.getLong(it * STATE_SLOT_SIZE + 8) }
+                .max() ?: 0L
+    }
+
+    /**
+     * Installs a package with the generated components and the StateTrackingService, which the PackageManager returns
+     * in place of the test manifest since there is no component index asset.
+     */
+    private fun installSyntheticManifest() {
+        val activities = ArrayList<ActivityInfo>()
+        val services = ArrayList<ServiceInfo>()
+        val receivers = ArrayList<ActivityInfo>()
+        val providers = ArrayList<ProviderInfo>()
+
+        for (fields in components) {
+            val name = fields[1]
+            when (ComponentType.fromTag(fields[0])) {
+                ComponentType.ACTIVITY -> activities.add(componentInfo(ActivityInfo(), name, fields[2], fields[3]))
+                ComponentType.SERVICE -> services.add(componentInfo(ServiceInfo(), name, fields[2], fields[3]))
+                ComponentType.RECEIVER -> receivers.add(componentInfo(ActivityInfo(), name, fields[2], fields[3]))
+                ComponentType.PROVIDER -> providers.add(componentInfo(ProviderInfo(), name, fields[2], fields[3]).apply {
+                    authority = name
+                })
+            }
+        }
+        services.add(componentInfo(ServiceInfo(), StateTrackingService::class.java.name, "sentinel", ""))
+
+        shadowOf(context.packageManager).installPackage(PackageInfo().apply {
+            packageName = context.packageName
+            versionCode = VERSION_CODE
+            applicationInfo = context.applicationInfo
+            this.activities = activities.toTypedArray()
+            this.services = services.toTypedArray()
+            this.receivers = receivers.toTypedArray()
+            this.providers = providers.toTypedArray()
+        })
+    }
+
+    private fun <T : ComponentInfo> componentInfo(info: T,
+                                                  name: String,
+                                                  appFamilies: String,
+                                                  mainForAppFamilies: String): T {
+        return info.apply {
+            this.name = name
+            packageName = context.packageName
+            applicationInfo = context.applicationInfo
+            metaData = Bundle().apply {
+                if (appFamilies.isNotEmpty()) putString("appFamilies", appFamilies)
+                if (mainForAppFamilies.isNotEmpty()) putString("mainForAppFamilies", mainForAppFamilies)
+            }
+        }
+    }
+
+    private class Usage(val reads: Long, val writes: Long, val commits: Int, val stateWrites: Long) {
+
+        fun assertReads(expected: Int) {
+            Assert.assertEquals("Component state reads", expected.toLong(), reads)
+        }
+
+        fun assertWrites(expected: Int) {
+            Assert.assertEquals("Component state writes", expected.toLong(), writes)
+        }
+
+        fun assertAtMost(commits: Int, stateWrites: Int) {
+            Assert.assertTrue("Preferences commits: ${this.commits} > $commits", this.commits <= commits)
+            Assert.assertTrue("State writes: ${this.stateWrites} > $stateWrites", this.stateWrites <= stateWrites)
+        }
+    }
+
+    /**
+     * Records process restarts instead of exiting the test JVM.
+     */
+    @Implements(ProcessPhoenix::class)
+    class ShadowProcessPhoenix {
+
+        companion object {
+            var rebirthCount = 0
+
+            @JvmStatic
+            @Implementation
+            fun triggerRebirth(context: Context) {
+                rebirthCount++
+            }
+        }
+    }
+
+    private class RecordingLiveAppSwapper : LiveAppSwapper {
+        val swappedAppFamilies = ArrayList<String>()
+
+        override fun canSwapInProcess(toAppFamily: String) = true
+
+        override fun swapToAppFamily(toAppFamily: String, relaunchIntent: Intent?) {
+            swappedAppFamilies.add(toAppFamily)
+        }
+    }
+
+    /**
+     * Throws, as if the process had died, once [remainingWrites] components were written.
+     */
+    private class CrashingComponentStateStore(
+            private val delegate: ComponentStateStore,
+            private var remainingWrites: Int
+    ) : ComponentStateStore by delegate {
+
+        override fun setComponentEnabledSettings(classNames: List<String>,
+                                                 states: IntArray,
+                                                 progress: ((writtenCount: Int, totalCount: Int) -> Unit)?) {
+            val count = Math.min(classNames.size, remainingWrites)
+            delegate.setComponentEnabledSettings(classNames.subList(0, count), states.copyOf(count), progress)
+            remainingWrites -= count
+            if (count < classNames.size) {
+                throw IllegalStateException("Crashed after writing $count components")
+            }
+        }
+    }
+
+    /**
+     * Counts the commits of every [SharedPreferences] it returns, whether synchronous or not.
+     */
+    private class CountingContext(base: Context) : ContextWrapper(base) {
+        val commitCount = AtomicInteger()
+
+        override fun getSharedPreferences(name: String?, mode: Int): SharedPreferences {
+            return CountingSharedPreferences(super.getSharedPreferences(name, mode))
+        }
+
+        private inner class CountingSharedPreferences(
+                private val delegate: SharedPreferences
+        ) : SharedPreferences by delegate {
+            override fun edit(): SharedPreferences.Editor = CountingEditor(delegate.edit())
+        }
+
+        private inner class CountingEditor(private val delegate: SharedPreferences.Editor) : SharedPreferences.Editor {
+            override fun putString(key: String?, value: String?): SharedPreferences.Editor {
+                delegate.putString(key, value)
+                return this
+            }
+
+            override fun putStringSet(key: String?, values: MutableSet<String>?): SharedPreferences.Editor {
+                delegate.putStringSet(key, values)
+                return this
+            }
+
+            override fun putInt(key: String?, value: Int): SharedPreferences.Editor {
+                delegate.putInt(key, value)
+                return this
+            }
+
+            override fun putLong(key: String?, value: Long): SharedPreferences.Editor {
+                delegate.putLong(key, value)
+                return this
+            }
+
+            override fun putFloat(key: String?, value: Float): SharedPreferences.Editor {
+                delegate.putFloat(key, value)
+                return this
+            }
+
+            override fun putBoolean(key: String?, value: Boolean): SharedPreferences.Editor {
+                delegate.putBoolean(key, value)
+                return this
+            }
+
+            override fun remove(key: String?): SharedPreferences.Editor {
+                delegate.remove(key)
+                return this
+            }
+
+            override fun clear(): SharedPreferences.Editor {
+                delegate.clear()
+                return this
+            }
+
+            override fun commit(): Boolean {
+                commitCount.incrementAndGet()
+                return delegate.commit()
+            }
+
+            override fun apply() {
+                commitCount.incrementAndGet()
+                delegate.apply()
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.snap.stuffing.lib
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.io.BufferedReader
+import java.io.StringReader
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures the steps of a switch that run before any component is written, on synthetic manifests: parsing the
+ * component index, classifying every component against each app family, resolving main activities, and computing the
+ * switch plan either from the previously applied app family or from the current state of every component.
+ *
+ * This is not a unit test: it's run on the JVM by the jmh task, with the gc profiler to also report the allocation rate
+ * of each step (see benchmarks.gradle).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class SwitchPlanningBenchmark {
+
+    @Param("100", "1000", "10000", "50000")
+    @JvmField
+    var componentCount = 0
+
+    @Param("2", "4", "16", "100")
+    @JvmField
+    var appFamilyCount = 0
+
+    private lateinit var componentIndex: String
+    private lateinit var table: ComponentTable
+    private lateinit var planner: SwitchPlanner
+    private lateinit var familyIds: IntArray
+    private lateinit var currentStates: IntArray
+
+    @Setup
+    fun setUp() {
+        componentIndex = syntheticComponentIndex(componentCount, appFamilyCount)
+        table = parseComponentIndex()
+        planner = SwitchPlanner(table, false, DynamicLaunchActivity::class.java.name)
+        familyIds = IntArray(appFamilyCount) { planner.targetId("family$it") }
+
+        // The components as left by a switch to the first app family
+        currentStates = IntArray(table.size) { planner.targetState(it, familyIds[0]) }
+    }
+
+    @Benchmark
+    fun parseComponentIndex(): ComponentTable {
+        return ComponentTable.parse(BufferedReader(StringReader(componentIndex)))
+    }
+
+    @Benchmark
+    fun classifyComponents(): Int {
+        var enabledCount = 0
+        for (familyId in familyIds) {
+            for (position in 0 until table.size) {
+                if (planner.targetState(position, familyId) == COMPONENT_STATE_ENABLED) {
+                    enabledCount++
+                }
+            }
+        }
+        return enabledCount
+    }
+
+    @Benchmark
+    fun findMainActivities(): Int {
+        var positions = 0
+        for (familyId in familyIds) {
+            positions += table.findMainActivity(familyId)
+        }
+        return positions
+    }
+
+    @Benchmark
+    fun planSwitchFromPreviousTarget(): SwitchPlan {
+        return planner.plan("family1", "family0", PlanScope.ALL) {
+            throw IllegalStateException("No component state should be read")
+        }
+    }
+
+    @Benchmark
+    fun planSwitchFromFullScan(): SwitchPlan {
+        return planner.plan("family1", null, PlanScope.ALL) { currentStates[it] }
+    }
+
+    @Benchmark
+    fun planCriticalComponents(): SwitchPlan {
+        return planner.plan("family1", "family0", PlanScope.CRITICAL) {
+            throw IllegalStateException("No component state should be read")
+        }
+    }
+}
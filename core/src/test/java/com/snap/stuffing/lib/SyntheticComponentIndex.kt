@@ -0,0 +1,49 @@
+package com.snap.stuffing.lib
+
+import java.io.BufferedReader
+import java.io.StringReader
+
+/**
+ * Package of the components created by [syntheticComponentIndex].
+ */
+internal const val SYNTHETIC_COMPONENT_PACKAGE = "com.snap.stuffing.synthetic"
+
+/**
+ * Builds a component index asset of [componentCount] synthetic components spread round-robin over [appFamilyCount] app
+ * families named "family0", "family1", etc. Component types alternate between activities, services, receivers and
+ * providers, and each run of one component of each type belongs to the next app family. The first activity of each app
+ * family is its main activity. Every [sharedEvery]th component has no app family, as components shared by all app
+ * families.
+ *
+ * This has no dependency on the Android framework, so it can be used by both the unit tests and the benchmarks.
+ */
+internal fun syntheticComponentIndex(componentCount: Int, appFamilyCount: Int, sharedEvery: Int = 10): String {
+    require(appFamilyCount >= 1) { "Unsupported app family count: $appFamilyCount" }
+
+    val types = ComponentType.values()
+    val mainActivityFamilies = HashSet<String>()
+    val index = StringBuilder(COMPONENT_INDEX_HEADER).append('\n')
+    for (i in 0 until componentCount) {
+        val type = types[i % types.size]
+        val appFamily = "family${(i / types.size) % appFamilyCount}"
+        val shared = sharedEvery > 0 && i % sharedEvery == sharedEvery - 1
+        val mainFor = type == ComponentType.ACTIVITY && !shared && mainActivityFamilies.add(appFamily)
+
+        index.append(type.tag).append('\t')
+                .append(SYNTHETIC_COMPONENT_PACKAGE).append('.').append(type.tag.capitalize()).append(i).append('\t')
+                .append(if (shared) "" else appFamily).append('\t')
+                .append(if (mainFor) appFamily else "").append('\t')
+                .append('\t')
+                .append(if (type == ComponentType.PROVIDER) "critical" else "").append('\t')
+                .append('\n')
+    }
+    return index.toString()
+}
+
+/**
+ * Parses the [syntheticComponentIndex] with the same arguments into a [ComponentTable].
+ */
+internal fun syntheticComponentTable(componentCount: Int, appFamilyCount: Int, sharedEvery: Int = 10): ComponentTable {
+    return ComponentTable.parse(BufferedReader(StringReader(
+            syntheticComponentIndex(componentCount, appFamilyCount, sharedEvery))))
+}
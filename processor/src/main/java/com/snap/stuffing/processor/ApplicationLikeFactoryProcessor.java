@@ -0,0 +1,291 @@
+package com.snap.stuffing.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates an {@code ApplicationLikeFactory} for the classes annotated with {@code ApplicationLikeEntry}, which creates
+ * them with a switch over their class names and app families instead of reflection.
+ *
+ * The generated class is named {@link #DEFAULT_FACTORY_CLASS_NAME} unless the {@link #OPTION_FACTORY_CLASS_NAME}
+ * option is set, which is needed when several modules of the same app register entries.
+ *
+ * App families are matched case-insensitively, like the appFamilies meta-data of the manifest components.
+ *
+ * Each entry is only referenced by its own nested class of the factory, so that loading and verifying the factory
+ * doesn't resolve the entries. Their code can then be packaged in the secondary dex files of their app family, which
+ * are loaded right before the entry is created.
+ *
+ * The factory is generated in the first round that finds entries, so that it can be compiled along with the other
+ * sources of that round. Entries generated by other processors in later rounds are reported as errors, since they
+ * would be missing from the factory. The processor is declared as an aggregating incremental processor in
+ * META-INF/gradle/incremental.annotation.processors: the factory is generated from all the entries of the compilation,
+ * and each of them is an originating element of the factory.
+ */
+public final class ApplicationLikeFactoryProcessor extends AbstractProcessor {
+
+    static final String OPTION_FACTORY_CLASS_NAME = "stuffing.applicationLikeFactory";
+    static final String DEFAULT_FACTORY_CLASS_NAME = "com.snap.stuffing.generated.GeneratedApplicationLikeFactory";
+
+    private static final String ANNOTATION_CLASS_NAME = "com.snap.stuffing.api.exopackage.ApplicationLikeEntry";
+    private static final String APPLICATION_LIKE_CLASS_NAME = "com.snap.stuffing.api.exopackage.ApplicationLike";
+    private static final String FACTORY_CLASS_NAME = "com.snap.stuffing.api.exopackage.ApplicationLikeFactory";
+    private static final String APPLICATION_CLASS_NAME = "android.app.Application";
+
+    private final Map<String, String> classNames = new LinkedHashMap<>();
+    private final Map<String, String> appFamilies = new LinkedHashMap<>();
+    private final Map<String, String> binaryNamesBySourceName = new LinkedHashMap<>();
+    private final List<Element> originatingElements = new ArrayList<>();
+    private boolean factoryWritten = false;
+
+    private Messager messager;
+    private Filer filer;
+    private Types types;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        messager = processingEnv.getMessager();
+        filer = processingEnv.getFiler();
+        types = processingEnv.getTypeUtils();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION_CLASS_NAME);
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(OPTION_FACTORY_CLASS_NAME);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (factoryWritten) {
+                    error(element, "@ApplicationLikeEntry classes can't be generated after the first round, "
+                            + "they would be missing from the generated factory");
+                } else if (isValidEntry(element)) {
+                    addEntry((TypeElement) element);
+                }
+            }
+        }
+
+        if (!factoryWritten && !classNames.isEmpty()) {
+            writeFactory();
+            factoryWritten = true;
+        }
+        return false;
+    }
+
+    private boolean isValidEntry(Element element) {
+        if (element.getKind() != ElementKind.CLASS) {
+            error(element, "@ApplicationLikeEntry can only be applied to classes");
+            return false;
+        }
+        if (!element.getModifiers().contains(Modifier.PUBLIC) || element.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(element, "@ApplicationLikeEntry classes must be public and non-abstract");
+            return false;
+        }
+        if (element.getEnclosingElement().getKind() != ElementKind.PACKAGE
+                && !element.getModifiers().contains(Modifier.STATIC)) {
+            error(element, "@ApplicationLikeEntry classes cannot be inner classes");
+            return false;
+        }
+
+        TypeMirror applicationLikeType =
+                processingEnv.getElementUtils().getTypeElement(APPLICATION_LIKE_CLASS_NAME).asType();
+        if (!types.isAssignable(element.asType(), applicationLikeType)) {
+            error(element, "@ApplicationLikeEntry classes must implement " + APPLICATION_LIKE_CLASS_NAME);
+            return false;
+        }
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(element.getEnclosedElements())) {
+            List<? extends VariableElement> parameters = constructor.getParameters();
+            if (constructor.getModifiers().contains(Modifier.PUBLIC)
+                    && parameters.size() == 1
+                    && types.erasure(parameters.get(0).asType()).toString().equals(APPLICATION_CLASS_NAME)) {
+                return true;
+            }
+        }
+        error(element, "@ApplicationLikeEntry classes must have a public constructor taking an " + APPLICATION_CLASS_NAME);
+        return false;
+    }
+
+    private void addEntry(TypeElement element) {
+        String className = processingEnv.getElementUtils().getBinaryName(element).toString();
+        String sourceName = element.getQualifiedName().toString();
+        classNames.put(className, sourceName);
+        binaryNamesBySourceName.put(sourceName, className);
+        originatingElements.add(element);
+
+        for (String appFamily : getAppFamilies(element)) {
+            String previous = appFamilies.put(appFamily, sourceName);
+            if (previous != null && !previous.equals(sourceName)) {
+                error(element, "App family \"" + appFamily + "\" is already registered by " + previous);
+            }
+        }
+    }
+
+    private List<String> getAppFamilies(TypeElement element) {
+        List<String> result = new ArrayList<>();
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (!((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName()
+                    .contentEquals(ANNOTATION_CLASS_NAME)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                    : mirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals("appFamilies")) {
+                    for (Object value : (List<?>) entry.getValue().getValue()) {
+                        result.add(((String) ((AnnotationValue) value).getValue()).trim().toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void writeFactory() {
+        String factoryClassName = processingEnv.getOptions().get(OPTION_FACTORY_CLASS_NAME);
+        if (factoryClassName == null || factoryClassName.isEmpty()) {
+            factoryClassName = DEFAULT_FACTORY_CLASS_NAME;
+        }
+        int lastDot = factoryClassName.lastIndexOf('.');
+        String packageName = lastDot > 0 ? factoryClassName.substring(0, lastDot) : null;
+        String simpleName = factoryClassName.substring(lastDot + 1);
+
+        StringBuilder source = new StringBuilder();
+        if (packageName != null) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import android.app.Application;\n")
+                .append("import ").append(APPLICATION_LIKE_CLASS_NAME).append(";\n")
+                .append("import ").append(FACTORY_CLASS_NAME).append(";\n\n")
+                .append("/**\n")
+                .append(" * Generated by ").append(ApplicationLikeFactoryProcessor.class.getName())
+                .append(", do not edit.\n")
+                .append(" */\n")
+                .append("public final class ").append(simpleName).append(" implements ApplicationLikeFactory {\n\n");
+        Map<String, String> creatorsBySourceName = new LinkedHashMap<>();
+        for (String sourceName : binaryNamesBySourceName.keySet()) {
+            creatorsBySourceName.put(sourceName, "Creator" + creatorsBySourceName.size());
+        }
+        appendSwitch(source, "createApplicationLike", "className", "className", classNames, creatorsBySourceName);
+        source.append("\n");
+        appendSwitch(source, "createApplicationLikeForAppFamily", "appFamily",
+                "appFamily.trim().toLowerCase(java.util.Locale.ROOT)", appFamilies, creatorsBySourceName);
+        source.append("\n");
+        appendClassNameSwitch(source, "getApplicationLikeClassNameForAppFamily", "appFamily",
+                "appFamily.trim().toLowerCase(java.util.Locale.ROOT)", appFamilies);
+        for (Map.Entry<String, String> entry : creatorsBySourceName.entrySet()) {
+            source.append("\n")
+                    .append("    static final class ").append(entry.getValue()).append(" {\n")
+                    .append("        static ApplicationLike create(Application application) {\n")
+                    .append("            return new ").append(entry.getKey()).append("(application);\n")
+                    .append("        }\n")
+                    .append("    }\n");
+        }
+        source.append("}\n");
+
+        try {
+            JavaFileObject file = filer.createSourceFile(
+                    factoryClassName, originatingElements.toArray(new Element[0]));
+            try (Writer writer = file.openWriter()) {
+                writer.write(source.toString());
+            }
+        } catch (IOException e) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Failed to write " + factoryClassName + ": " + e);
+        }
+    }
+
+    private static void appendSwitch(StringBuilder source,
+                                     String methodName,
+                                     String keyName,
+                                     String keyExpression,
+                                     Map<String, String> sourceNamesByKey,
+                                     Map<String, String> creatorsBySourceName) {
+        source.append("    @Override\n")
+                .append("    public ApplicationLike ").append(methodName)
+                .append("(String ").append(keyName).append(", Application application) {\n");
+        if (!sourceNamesByKey.isEmpty()) {
+            source.append("        switch (").append(keyExpression).append(") {\n");
+            for (Map.Entry<String, String> entry : sourceNamesByKey.entrySet()) {
+                source.append("            case \"").append(escape(entry.getKey())).append("\":\n")
+                        .append("                return ").append(creatorsBySourceName.get(entry.getValue()))
+                        .append(".create(application);\n");
+            }
+            source.append("            default:\n")
+                    .append("                return null;\n")
+                    .append("        }\n");
+        } else {
+            source.append("        return null;\n");
+        }
+        source.append("    }\n");
+    }
+
+    private void appendClassNameSwitch(StringBuilder source,
+                                       String methodName,
+                                       String keyName,
+                                       String keyExpression,
+                                       Map<String, String> sourceNamesByKey) {
+        source.append("    @Override\n")
+                .append("    public String ").append(methodName).append("(String ").append(keyName).append(") {\n");
+        if (!sourceNamesByKey.isEmpty()) {
+            source.append("        switch (").append(keyExpression).append(") {\n");
+            for (Map.Entry<String, String> entry : sourceNamesByKey.entrySet()) {
+                String binaryName = binaryNamesBySourceName.get(entry.getValue());
+                source.append("            case \"").append(escape(entry.getKey())).append("\":\n")
+                        .append("                return \"").append(escape(binaryName)).append("\";\n");
+            }
+            source.append("            default:\n")
+                    .append("                return null;\n")
+                    .append("        }\n");
+        } else {
+            source.append("        return null;\n");
+        }
+        source.append("    }\n");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private void error(Element element, String message) {
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,175 @@
+package com.snap.stuffing.processor;
+
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+
+import javax.tools.JavaFileObject;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+
+/**
+ * Compiles {@code ApplicationLikeEntry} classes along with stubs of the Android and stuffing API classes they depend
+ * on, then loads the generated factory to check how it resolves class names and app families.
+ */
+public class ApplicationLikeFactoryProcessorTest {
+
+    private static final JavaFileObject APPLICATION = JavaFileObjects.forSourceLines(
+            "android.app.Application",
+            "package android.app;",
+            "public class Application {}");
+
+    private static final JavaFileObject APPLICATION_LIKE = JavaFileObjects.forSourceLines(
+            "com.snap.stuffing.api.exopackage.ApplicationLike",
+            "package com.snap.stuffing.api.exopackage;",
+            "public interface ApplicationLike {}");
+
+    private static final JavaFileObject APPLICATION_LIKE_ENTRY = JavaFileObjects.forSourceLines(
+            "com.snap.stuffing.api.exopackage.ApplicationLikeEntry",
+            "package com.snap.stuffing.api.exopackage;",
+            "public @interface ApplicationLikeEntry {",
+            "    String[] appFamilies() default {};",
+            "}");
+
+    private static final JavaFileObject APPLICATION_LIKE_FACTORY = JavaFileObjects.forSourceLines(
+            "com.snap.stuffing.api.exopackage.ApplicationLikeFactory",
+            "package com.snap.stuffing.api.exopackage;",
+            "import android.app.Application;",
+            "public interface ApplicationLikeFactory {",
+            "    ApplicationLike createApplicationLike(String className, Application application);",
+            "    ApplicationLike createApplicationLikeForAppFamily(String appFamily, Application application);",
+            "    String getApplicationLikeClassNameForAppFamily(String appFamily);",
+            "}");
+
+    @Test
+    public void testAppFamiliesAreMatchedCaseInsensitively() throws Exception {
+        Compilation compilation = compile(entry("MainApplicationLike", "\" Main \""));
+        assertThat(compilation).succeeded();
+
+        Object factory = loadFactory(compilation);
+        Assert.assertEquals("test.MainApplicationLike",
+                getApplicationLikeClassNameForAppFamily(factory, "MAIN"));
+        Assert.assertEquals("test.MainApplicationLike",
+                getApplicationLikeClassNameForAppFamily(factory, " main"));
+        Assert.assertEquals("test.MainApplicationLike",
+                createApplicationLikeForAppFamily(factory, "mAiN").getClass().getName());
+    }
+
+    @Test
+    public void testAppFamilyRegisteredTwiceIsAnError() {
+        Compilation compilation = compile(
+                entry("FirstApplicationLike", "\"main\""),
+                entry("SecondApplicationLike", "\"Main\""));
+
+        assertThat(compilation).failed();
+        assertThat(compilation)
+                .hadErrorContaining("App family \"main\" is already registered by test.FirstApplicationLike");
+    }
+
+    @Test
+    public void testUnknownAppFamilyFallsBackToNull() throws Exception {
+        Compilation compilation = compile(
+                entry("MainApplicationLike", "\"main\""),
+                entry("SharedApplicationLike"));
+        assertThat(compilation).succeeded();
+
+        Object factory = loadFactory(compilation);
+        Assert.assertNull(getApplicationLikeClassNameForAppFamily(factory, "other"));
+        Assert.assertNull(createApplicationLikeForAppFamily(factory, "other"));
+
+        // Entries without app families can still be created by class name
+        Method createApplicationLike = factory.getClass()
+                .getMethod("createApplicationLike", String.class, applicationClass(factory));
+        Object application = newApplication(factory);
+        Assert.assertNotNull(createApplicationLike.invoke(factory, "test.SharedApplicationLike", application));
+        Assert.assertNull(createApplicationLike.invoke(factory, "test.OtherApplicationLike", application));
+    }
+
+    private static JavaFileObject entry(String simpleName, String... appFamilies) {
+        return JavaFileObjects.forSourceLines(
+                "test." + simpleName,
+                "package test;",
+                "import android.app.Application;",
+                "import com.snap.stuffing.api.exopackage.ApplicationLike;",
+                "import com.snap.stuffing.api.exopackage.ApplicationLikeEntry;",
+                "@ApplicationLikeEntry(appFamilies = {" + String.join(", ", appFamilies) + "})",
+                "public class " + simpleName + " implements ApplicationLike {",
+                "    public " + simpleName + "(Application application) {}",
+                "}");
+    }
+
+    private static Compilation compile(JavaFileObject... entries) {
+        JavaFileObject[] sources = new JavaFileObject[entries.length + 4];
+        sources[0] = APPLICATION;
+        sources[1] = APPLICATION_LIKE;
+        sources[2] = APPLICATION_LIKE_ENTRY;
+        sources[3] = APPLICATION_LIKE_FACTORY;
+        System.arraycopy(entries, 0, sources, 4, entries.length);
+        return javac().withProcessors(new ApplicationLikeFactoryProcessor()).compile(sources);
+    }
+
+    /**
+     * Loads the generated factory from the classes of the {@code compilation}, and creates an instance of it.
+     */
+    private static Object loadFactory(final Compilation compilation) throws Exception {
+        ClassLoader classLoader = new ClassLoader(ApplicationLikeFactoryProcessorTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                String path = "/" + name.replace('.', '/') + ".class";
+                for (JavaFileObject file : compilation.generatedFiles()) {
+                    if (file.getKind() == JavaFileObject.Kind.CLASS && file.toUri().getPath().endsWith(path)) {
+                        byte[] bytes = readBytes(file);
+                        return defineClass(name, bytes, 0, bytes.length);
+                    }
+                }
+                throw new ClassNotFoundException(name);
+            }
+        };
+        return classLoader.loadClass(ApplicationLikeFactoryProcessor.DEFAULT_FACTORY_CLASS_NAME)
+                .getConstructor()
+                .newInstance();
+    }
+
+    private static byte[] readBytes(JavaFileObject file) throws ClassNotFoundException {
+        try (InputStream input = file.openInputStream()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(file.getName(), e);
+        }
+    }
+
+    private static Class<?> applicationClass(Object factory) throws ClassNotFoundException {
+        return factory.getClass().getClassLoader().loadClass("android.app.Application");
+    }
+
+    private static Object newApplication(Object factory) throws Exception {
+        return applicationClass(factory).getConstructor().newInstance();
+    }
+
+    private static String getApplicationLikeClassNameForAppFamily(Object factory, String appFamily)
+            throws Exception {
+        return (String) factory.getClass()
+                .getMethod("getApplicationLikeClassNameForAppFamily", String.class)
+                .invoke(factory, appFamily);
+    }
+
+    private static Object createApplicationLikeForAppFamily(Object factory, String appFamily) throws Exception {
+        return factory.getClass()
+                .getMethod("createApplicationLikeForAppFamily", String.class, applicationClass(factory))
+                .invoke(factory, appFamily, newApplication(factory));
+    }
+}
@@ -3,6 +3,7 @@ package com.snap.stuffing.sample;
 import android.app.Activity;
 
 import com.snap.stuffing.api.exopackage.ExopackageApplication;
+import com.snap.stuffing.generated.GeneratedApplicationLikeFactory;
 
 import dagger.android.AndroidInjector;
 import dagger.android.HasActivityInjector;
@@ -10,7 +11,9 @@ import dagger.android.HasActivityInjector;
 public class SampleAppShell extends ExopackageApplication implements HasActivityInjector {
 
     public SampleAppShell() {
-        super("com.snap.stuffing.sample.SampleDelegatingApplicationLike", BuildConfig.EXOPACKAGE_FLAGS);
+        super("com.snap.stuffing.sample.SampleDelegatingApplicationLike",
+                BuildConfig.EXOPACKAGE_FLAGS,
+                new GeneratedApplicationLikeFactory());
     }
 
     @Override
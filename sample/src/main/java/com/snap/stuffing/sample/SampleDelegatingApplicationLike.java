@@ -2,43 +2,56 @@ package com.snap.stuffing.sample;
 
 import com.snap.stuffing.api.DynamicAppConfig;
 import com.snap.stuffing.api.exopackage.ApplicationLike;
+import com.snap.stuffing.api.exopackage.ApplicationLikeEntry;
 import com.snap.stuffing.bindings.ApplicationComponentOwner;
 import com.snap.stuffing.bindings.DelegatingApplicationLike;
 import com.snap.stuffing.bindings.DynamicAppModule;
+import com.snap.stuffing.generated.GeneratedApplicationLikeFactory;
 import com.snap.stuffing.sample.first.FirstApplication;
-import com.snap.stuffing.sample.second.SecondApplication;
 
 import android.app.Application;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.util.Collections;
 
 /**
  * A {@link DelegatingApplicationLike} implementation used to select between the two sample applications.
+ *
+ * The {@link DynamicAppModule} is created and initialized once per process, and shared by the applications created
+ * after each in-process swap.
  */
+@ApplicationLikeEntry
 public class SampleDelegatingApplicationLike extends DelegatingApplicationLike {
 
+    @Nullable private DynamicAppModule mDynamicAppModule = null;
+
     public SampleDelegatingApplicationLike(@NonNull Application application) {
-        super(application);
+        super(application, new GeneratedApplicationLikeFactory());
+    }
+
+    @NonNull
+    private synchronized DynamicAppModule getDynamicAppModule() {
+        if (mDynamicAppModule == null) {
+            mDynamicAppModule = DynamicAppModule.makeMultiAppModule(mApplication,
+                    "first",
+                    new DynamicAppConfig(Collections.emptyMap(), false, BuildConfig.VERSION_CODE, this),
+                    (fromAppFamily, toAppFamily) -> {
+                        // no-op
+                    });
+            mDynamicAppModule.dynamicAppManager().initialize();
+        }
+        return mDynamicAppModule;
     }
 
     @NonNull
     @Override
     protected ApplicationLike createApplication() {
-        final DynamicAppModule dynamicAppModule =
-                DynamicAppModule.makeMultiAppModule(mApplication,
-                        "first",
-                        new DynamicAppConfig(Collections.emptyMap()),
-                        (fromAppFamily, toAppFamily) -> {
-                            // no-op
-                        });
-
-        dynamicAppModule.dynamicAppManager().initialize();
-
-        final ApplicationLike applicationLike;
-        if ("second".equals(dynamicAppModule.dynamicAppManager().getApplicationFamily())) {
-            applicationLike = new SecondApplication(mApplication);
-        } else {
+        final DynamicAppModule dynamicAppModule = getDynamicAppModule();
+
+        ApplicationLike applicationLike = instantiateApplicationLikeForAppFamily(
+                dynamicAppModule.dynamicAppManager().getApplicationFamily());
+        if (applicationLike == null) {
             applicationLike = new FirstApplication(mApplication);
         }
 
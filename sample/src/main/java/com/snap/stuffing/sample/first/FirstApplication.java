@@ -4,7 +4,9 @@ import android.app.Activity;
 import android.app.Application;
 import android.support.annotation.NonNull;
 
+import com.snap.stuffing.api.exopackage.ApplicationLikeEntry;
 import com.snap.stuffing.api.exopackage.DefaultApplicationLike;
+import com.snap.stuffing.api.exopackage.LiveSwappableApplicationLike;
 import com.snap.stuffing.bindings.ApplicationComponentOwner;
 import com.snap.stuffing.bindings.DynamicAppModule;
 import dagger.android.AndroidInjector;
@@ -13,7 +15,9 @@ import dagger.android.HasActivityInjector;
 
 import javax.inject.Inject;
 
-public class FirstApplication extends DefaultApplicationLike implements HasActivityInjector, ApplicationComponentOwner {
+@ApplicationLikeEntry(appFamilies = "first")
+public class FirstApplication extends DefaultApplicationLike
+        implements HasActivityInjector, ApplicationComponentOwner, LiveSwappableApplicationLike {
     private final Application app;
 
     private FirstApplicationComponent appComponent;
@@ -34,6 +38,12 @@ public class FirstApplication extends DefaultApplicationLike implements HasActiv
         appComponent.inject(this);
     }
 
+    @Override
+    public void onTearDown() {
+        appComponent = null;
+        dispatchingActivityInjector = null;
+    }
+
     @Override
     public AndroidInjector<Activity> activityInjector() {
         return dispatchingActivityInjector;
@@ -6,14 +6,18 @@ import android.support.annotation.NonNull;
 
 import javax.inject.Inject;
 
+import com.snap.stuffing.api.exopackage.ApplicationLikeEntry;
 import com.snap.stuffing.api.exopackage.DefaultApplicationLike;
+import com.snap.stuffing.api.exopackage.LiveSwappableApplicationLike;
 import com.snap.stuffing.bindings.ApplicationComponentOwner;
 import com.snap.stuffing.bindings.DynamicAppModule;
 import dagger.android.AndroidInjector;
 import dagger.android.DispatchingAndroidInjector;
 import dagger.android.HasActivityInjector;
 
-public class SecondApplication extends DefaultApplicationLike implements HasActivityInjector, ApplicationComponentOwner {
+@ApplicationLikeEntry(appFamilies = "second")
+public class SecondApplication extends DefaultApplicationLike
+        implements HasActivityInjector, ApplicationComponentOwner, LiveSwappableApplicationLike {
     private final Application app;
 
     private SecondApplicationComponent appComponent;
@@ -34,6 +38,12 @@ public class SecondApplication extends DefaultApplicationLike implements HasActi
         appComponent.inject(this);
     }
 
+    @Override
+    public void onTearDown() {
+        appComponent = null;
+        dispatchingActivityInjector = null;
+    }
+
     @Override
     public AndroidInjector<Activity> activityInjector() {
         return dispatchingActivityInjector;